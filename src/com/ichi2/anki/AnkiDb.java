@@ -23,12 +23,16 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.ichi2.libanki.Utils;
 import com.tomgibara.android.veecheck.util.PrefSettings;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Database layer for AnkiDroid. Can read the native Anki format through Android's SQLite driver.
@@ -37,12 +41,26 @@ public class AnkiDb {
 
 	private static final String[] MOD_SQLS = new String[] {"insert", "update", "delete"};
 
+	/** Id lists longer than this are passed to sqlite through a temporary table instead of being inlined */
+	private static final int ID_SET_INLINE_LIMIT = 100;
+
     /**
      * The deck, which is actually an SQLite database.
      */
     private SQLiteDatabase mDatabase;
     private boolean mMod = false;
 
+    /**
+     * Second, read-only connection for long read-only queries (statistics, browser, searches). With WAL it reads the
+     * last committed state while the main connection writes, so those queries neither wait for nor block reviews.
+     */
+    private SQLiteDatabase mReadDatabase;
+    /** Set once closing has started, so that no read connection is opened again. Guarded by this. */
+    private boolean mClosing = false;
+
+    /** Prepared inserts into the temporary id set tables, by table name. Guarded by itself. */
+    private final HashMap<String, SQLiteStatement> mIdSetInserts = new HashMap<String, SQLiteStatement>();
+
     /**
      * Open a database connection to an ".anki" SQLite file.
      */
@@ -67,10 +85,23 @@ public class AnkiDb {
 
 
     /**
-     * Closes a previously opened database connection.
+     * Closes a previously opened database connection. Holds the lock of this object throughout, so that
+     * {@link #getReadDatabase()} can't hand out or reopen the read connection meanwhile.
      */
-    public void closeDatabase() {
+    public synchronized void closeDatabase() {
+        mClosing = true;
+        if (mReadDatabase != null) {
+            // must be gone before leaving WAL mode
+            mReadDatabase.close();
+            mReadDatabase = null;
+        }
         if (mDatabase != null) {
+            synchronized (mIdSetInserts) {
+                for (SQLiteStatement insert : mIdSetInserts.values()) {
+                    insert.close();
+                }
+                mIdSetInserts.clear();
+            }
         	// set journal mode again to delete in order to make the db accessible for anki desktop and for full upload 
         	queryString("PRAGMA journal_mode = DELETE");
             mDatabase.close();
@@ -93,6 +124,34 @@ public class AnkiDb {
     }
 
 
+    /**
+     * Return the connection to use for read-only queries which may run concurrently to writes. It only sees committed
+     * data, so within a transaction of the calling thread the main connection is returned instead. Without WAL
+     * (before Honeycomb) readers and writers exclude each other anyway and the main connection is used as well.
+     * Once closing has started, no read connection is opened again.
+     */
+    public SQLiteDatabase getReadDatabase() {
+        if (UIUtils.getApiLevel() < 11) {
+            return mDatabase;
+        }
+        synchronized (this) {
+            if (mClosing || mDatabase == null || mDatabase.inTransaction()) {
+                return mDatabase;
+            }
+            if (mReadDatabase == null) {
+                try {
+                    mReadDatabase = SQLiteDatabase.openDatabase(mDatabase.getPath(), null, SQLiteDatabase.OPEN_READONLY
+                            | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                } catch (SQLiteException e) {
+                    Log.e(AnkiDroidApp.TAG, "AnkiDb - could not open read connection: " + e);
+                    return mDatabase;
+                }
+            }
+            return mReadDatabase;
+        }
+    }
+
+
     public void setMod(boolean mod) {
     	mMod = mod;
     }
@@ -188,11 +247,17 @@ public class AnkiDb {
      * @return An ArrayList with the contents of the specified column.
      */
     public <T> ArrayList<T> queryColumn(Class<T> type, String query, int column) {
+        return queryColumn(type, query, column, false);
+    }
+    /**
+     * @param readOnly Whether the query may run on the read connection, see {@link #getReadDatabase()}.
+     */
+    public <T> ArrayList<T> queryColumn(Class<T> type, String query, int column, boolean readOnly) {
         ArrayList<T> results = new ArrayList<T>();
         Cursor cursor = null;
 
         try {
-            cursor = mDatabase.rawQuery(query, null);
+            cursor = (readOnly ? getReadDatabase() : mDatabase).rawQuery(query, null);
             String methodName = getCursorMethodName(type.getSimpleName());
             while (cursor.moveToNext()) {
                 // The magical line. Almost as illegible as python code ;)
@@ -278,6 +343,44 @@ public class AnkiDb {
 	}
 
 
+	/**
+	 * Return an sql list "(id1, id2, ...)" or subquery "(SELECT id FROM name)" containing the given ids, to be used as
+	 * "... id IN " + idSet(name, ids). Short lists are inlined like Utils.ids2str() does. Longer ones are loaded into
+	 * the indexed temporary table name with a reused prepared insert, so that sqlite doesn't have to parse statements
+	 * of several megabytes, which may also exceed its maximum statement length.
+	 * The table is refilled on the next call with the same name from the same thread, so use a name per caller and
+	 * use the returned string before calling again. Each thread gets its own table, as not all callers hold
+	 * Collection.getLock() (sync doesn't).
+	 */
+	public String idSet(String name, long[] ids) {
+		if (ids == null || ids.length <= ID_SET_INLINE_LIMIT) {
+			return Utils.ids2str(ids);
+		}
+		name = name + "_" + Thread.currentThread().getId();
+		SQLiteStatement insert;
+		synchronized (mIdSetInserts) {
+			insert = mIdSetInserts.get(name);
+			if (insert == null) {
+				mDatabase.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + name + " (id INTEGER PRIMARY KEY)");
+				insert = mDatabase.compileStatement("INSERT OR IGNORE INTO " + name + " VALUES (?)");
+				mIdSetInserts.put(name, insert);
+			}
+		}
+		mDatabase.beginTransaction();
+		try {
+			mDatabase.execSQL("DELETE FROM " + name);
+			for (long id : ids) {
+				insert.bindLong(1, id);
+				insert.execute();
+			}
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			mDatabase.endTransaction();
+		}
+		return "(SELECT id FROM " + name + ")";
+	}
+
+
 	public void executeMany(String sql, ArrayList<Object[]> list) {
 		mMod = true;
 		mDatabase.beginTransaction();
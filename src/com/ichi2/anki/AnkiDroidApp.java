@@ -104,9 +104,10 @@ public class AnkiDroidApp extends Application {
             // Reason: apply() not available on Android 1.5
             editor.commit();
         }
-        
-        
-        
+
+        // reviewer and widgets look up their settings in the meta-db, have it in memory before they start
+        MetaDB.preload(getApplicationContext());
+
 
         // Reschedule the checks - we need to do this if the settings have
         // changed (as above)
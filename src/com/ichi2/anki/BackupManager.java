@@ -54,8 +54,15 @@ public class BackupManager {
 	public final static String BACKUP_SUFFIX = "/backup";
 	public final static String BROKEN_DECKS_SUFFIX = "/broken";
 
+	/** Matches backup file names, both full copies (.anki2) and incremental snapshots (.anki2snap) */
+	private static final String BACKUP_NAME_PATTERN = "^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}\\.anki2(snap)?$";
+	private static final String BACKUP_DATE_PATTERN = "^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2})\\.anki2(snap)?$";
+
 	private static boolean mUseBackups = true;
 
+	/** Thread running a backup after the collection has been closed */
+	private static Thread sBackupThread;
+
  	/** Number of day after which a backup is done on first non-studyoptions-opening (for safety reasons) */
 	public static final int SAFETY_BACKUP_THRESHOLD = 3;
 
@@ -119,7 +126,7 @@ public class BackupManager {
         while (lastBackupDate == null && len > 0) {
         	try {
         		len--;
-        		lastBackupDate = df.parse(deckBackups[len].getName().replaceAll("^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).anki2$", "$1"));
+        		lastBackupDate = df.parse(deckBackups[len].getName().replaceAll(BACKUP_DATE_PATTERN, "$1"));
         	} catch (ParseException e) {
         		lastBackupDate = null;
         	}
@@ -173,7 +180,7 @@ public class BackupManager {
         while (lastBackupDate == null && len > 0) {
         	try {
         		len--;
-        		lastBackupDate = df.parse(deckBackups[len].getName().replaceAll("^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).anki2$", "$1"));
+        		lastBackupDate = df.parse(deckBackups[len].getName().replaceAll(BACKUP_DATE_PATTERN, "$1"));
         	} catch (ParseException e) {
         		lastBackupDate = null;
         	}
@@ -185,7 +192,7 @@ public class BackupManager {
 
         String backupFilename;
         try {
-        	backupFilename = String.format(Utils.ENGLISH_LOCALE, collectionFile.getName().replace(".anki2", "") + "-%s.anki2", df.format(cal.getTime()));
+        	backupFilename = String.format(Utils.ENGLISH_LOCALE, collectionFile.getName().replace(".anki2", "") + "-%s" + BackupStore.SNAPSHOT_SUFFIX, df.format(cal.getTime()));
         } catch (UnknownFormatConversionException e) {
         	Log.e(AnkiDroidApp.TAG, "performBackup: error on creating backup filename: " + e);
         	return;
@@ -204,15 +211,19 @@ public class BackupManager {
         }
 
         try {
-            InputStream stream = new FileInputStream(collectionFile);
-            Utils.writeToFile(stream, backupFile.getAbsolutePath());
-            stream.close();
+            // only chunks which changed since an earlier backup are written, compressed
+            long start = System.currentTimeMillis();
+            long added = getStore(collectionFile).backup(collectionFile, backupFile);
+            Log.i(AnkiDroidApp.TAG, "performBackup: created " + backupFile.getName() + " in "
+            		+ (System.currentTimeMillis() - start) + " ms, " + added + " bytes written for a collection of "
+            		+ collectionFile.length() + " bytes");
 
             // set timestamp of file in order to avoid creating a new backup unless its changed
             backupFile.setLastModified(collectionFile.lastModified());
         } catch (IOException e) {
             Log.e(AnkiDroidApp.TAG, Log.getStackTraceString(e));
             Log.e(AnkiDroidApp.TAG, "performBackup: Copying of file failed.");
+            backupFile.delete();
             return;
         }
 
@@ -221,6 +232,51 @@ public class BackupManager {
 	}
 
 
+	/**
+	 * Create a backup on a background thread, so that closing the collection is not delayed by it, then run pending
+	 * database maintenance. The collection must not be opened again before {@link #waitForBackup()} returned.
+	 */
+	public static synchronized void performBackupInBackground(final String path) {
+		waitForBackup();
+		DatabaseMaintenance.resetIdleJob();
+		sBackupThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					performBackup(path);
+				} catch (RuntimeException e) {
+					Log.e(AnkiDroidApp.TAG, "performBackupInBackground: backup failed: " + e);
+				}
+				// the collection is closed and can't be reopened before this thread ends
+				DatabaseMaintenance.runIdleJob(path);
+			}
+		}, "BackupManager");
+		sBackupThread.setPriority(Thread.MIN_PRIORITY);
+		sBackupThread.start();
+	}
+
+
+	/** Wait until a backup started by {@link #performBackupInBackground(String)} has been finished */
+	public static synchronized void waitForBackup() {
+		if (sBackupThread == null) {
+			return;
+		}
+		// a running backup is completed, but no further maintenance statement is started
+		DatabaseMaintenance.cancelIdleJob();
+		try {
+			sBackupThread.join();
+		} catch (InterruptedException e) {
+			Log.e(AnkiDroidApp.TAG, "waitForBackup: interrupted while waiting for backup");
+		}
+		sBackupThread = null;
+	}
+
+
+	private static BackupStore getStore(File colFile) {
+		return BackupStore.get(getBackupDirectory(), colFile.getName());
+	}
+
+
 	public static boolean enoughDiscSpace(String path) {
 		if (getFreeDiscSpace(path) >= (MIN_FREE_SPACE * 1024 * 1024)) {
 			return true;
@@ -247,6 +303,7 @@ public class BackupManager {
 
 
 	public static int restoreBackup(String path, String backupPath) {
+		waitForBackup();
         // rename old file and move it to subdirectory
     	if ((new File(path)).exists() && !moveDatabaseToBrokenFolder(path, false)) {
     		return RETURN_ERROR;
@@ -260,9 +317,18 @@ public class BackupManager {
         	return RETURN_NOT_ENOUGH_SPACE;
         }
         try {
-            InputStream stream = new FileInputStream(backupFile);
-            Utils.writeToFile(stream, colFile.getAbsolutePath());
-            stream.close();
+        	if (BackupStore.isSnapshot(backupFile)) {
+        		String colName = backupFile.getName().replaceAll(BACKUP_NAME_PATTERN, "$1.anki2");
+        		long start = System.currentTimeMillis();
+        		BackupStore.get(backupFile.getParentFile(), colName).restore(backupFile, colFile);
+        		Log.i(AnkiDroidApp.TAG, "restoreBackup: restored " + colFile.length() + " bytes in "
+        				+ (System.currentTimeMillis() - start) + " ms");
+        	} else {
+        		// full copy, as written by older versions
+                InputStream stream = new FileInputStream(backupFile);
+                Utils.writeToFile(stream, colFile.getAbsolutePath());
+                stream.close();
+        	}
 
             // set timestamp of file in order to avoid creating a new backup unless its changed
             colFile.setLastModified(backupFile.lastModified());
@@ -346,7 +412,7 @@ public class BackupManager {
 		File[] files = getBackupDirectory().listFiles();
 		ArrayList<File> deckBackups = new ArrayList<File>();
 		for (File aktFile : files){
-			if (aktFile.getName().replaceAll("^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}.anki2$", "$1.anki2").equals(colFile.getName())) {
+			if (aktFile.getName().replaceAll(BACKUP_NAME_PATTERN, "$1.anki2").equals(colFile.getName())) {
 				deckBackups.add(aktFile);
 			}
 		}
@@ -372,10 +438,26 @@ public class BackupManager {
 //
 //
 	public static boolean deleteDeckBackups(String colFile, int keepNumber) {
-		return deleteDeckBackups(getBackups(new File(colFile)), keepNumber);
+		return deleteDeckBackups(new File(colFile), keepNumber);
 	}
 	public static boolean deleteDeckBackups(File colFile, int keepNumber) {
-		return deleteDeckBackups(getBackups(colFile), keepNumber);
+		File[] backups = getBackups(colFile);
+		if (!deleteDeckBackups(backups, keepNumber)) {
+			return false;
+		}
+		// drop the chunks which are not used by the remaining snapshots anymore
+		ArrayList<File> snapshots = new ArrayList<File>();
+		for (int i = Math.max(0, backups.length - keepNumber); i < backups.length; i++) {
+			if (BackupStore.isSnapshot(backups[i])) {
+				snapshots.add(backups[i]);
+			}
+		}
+		try {
+			getStore(colFile).compact(snapshots.toArray(new File[snapshots.size()]));
+		} catch (IOException e) {
+			Log.e(AnkiDroidApp.TAG, "deleteDeckBackups: compacting backup store failed: " + e);
+		}
+		return true;
 	}
 	public static boolean deleteDeckBackups(File[] backups, int keepNumber) {
     	if (backups == null) {
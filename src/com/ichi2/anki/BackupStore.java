@@ -0,0 +1,462 @@
+/***************************************************************************************
+ * Copyright (c) 2012 Norbert Nagold <norbert.nagold@gmail.com>                         *
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.ichi2.libanki.Utils;
+
+import android.util.Log;
+
+/**
+ * Incremental, compressed backups of a collection file.
+ * <p>
+ * The collection is split into fixed size chunks, which contain whole sqlite pages. Chunks are deflated and stored once
+ * in an append only pack file and identified by their SHA1, so a backup only writes the chunks which changed since any
+ * earlier backup. A snapshot file records the pack offsets of all chunks of one backup and is enough to restore it.
+ * <p>
+ * Pack records are [sha1 (20 bytes)][int raw length][int stored length][data]. If both lengths are equal the chunk did
+ * not compress and is stored as is, otherwise it is deflated. Snapshots are [int magic][int version][long pack generation]
+ * [long file length][int chunk size][int chunk count][long offset]*. When old snapshots are deleted and most of the
+ * pack is no longer referenced, the referenced chunks are copied into a pack of the next generation and the snapshots
+ * are rewritten to point into it. The old pack is only removed when no snapshot refers to it anymore.
+ */
+public class BackupStore {
+
+	public static final String SNAPSHOT_SUFFIX = ".anki2snap";
+	private static final String STORE_SUFFIX = ".store";
+	private static final String PACK_PREFIX = "chunks-";
+	private static final String PACK_SUFFIX = ".pack";
+
+	private static final int SNAPSHOT_MAGIC = 0x414e4b53;
+	private static final int SNAPSHOT_VERSION = 2;
+	/** A multiple of the largest sqlite page size, so that a changed page only dirties one chunk */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int HASH_LENGTH = 20;
+	private static final int RECORD_HEADER_LENGTH = HASH_LENGTH + 8;
+	/** Sqlite files compress well already at the fastest level, higher levels mostly cost time */
+	private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+	/** The pack is compacted when less than this part of it is still referenced */
+	private static final double MIN_PACK_USAGE = 0.5;
+
+	/** One instance per store directory, so that its synchronized methods exclude each other */
+	private static final HashMap<String, BackupStore> sStores = new HashMap<String, BackupStore>();
+
+	private final File mStoreDir;
+
+
+	private BackupStore(File storeDir) {
+		mStoreDir = storeDir;
+	}
+
+
+	/**
+	 * @param backupDir The directory containing the snapshots.
+	 * @param colName The file name of the collection, the chunks are kept in a subdirectory named after it.
+	 */
+	public static BackupStore get(File backupDir, String colName) {
+		File storeDir = new File(backupDir, colName + STORE_SUFFIX);
+		synchronized (sStores) {
+			BackupStore store = sStores.get(storeDir.getAbsolutePath());
+			if (store == null) {
+				store = new BackupStore(storeDir);
+				sStores.put(storeDir.getAbsolutePath(), store);
+			}
+			return store;
+		}
+	}
+
+
+	public static boolean isSnapshot(File file) {
+		return file.getName().endsWith(SNAPSHOT_SUFFIX);
+	}
+
+
+	/**
+	 * Write a snapshot of the collection file, adding its chunks to the current pack if they are not stored yet.
+	 * @return The number of bytes added to the pack.
+	 */
+	public synchronized long backup(File colFile, File snapshotFile) throws IOException {
+		if (!mStoreDir.isDirectory() && !mStoreDir.mkdirs()) {
+			throw new IOException("BackupStore: could not create " + mStoreDir);
+		}
+		long generation = currentGeneration();
+		File packFile = packFile(generation);
+		HashMap<String, Long> known = readPackIndex(packFile);
+		MessageDigest md = sha1();
+		Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+		byte[] compressed = new byte[CHUNK_SIZE];
+
+		RandomAccessFile pack = new RandomAccessFile(packFile, "rw");
+		FileInputStream in = new FileInputStream(colFile);
+		long added = 0;
+		long[] offsets;
+		long length;
+		try {
+			long packEnd = pack.length();
+			pack.seek(packEnd);
+			DataOutputStream packOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(pack.getFD()), CHUNK_SIZE + RECORD_HEADER_LENGTH));
+			FileChannel channel = in.getChannel();
+			length = channel.size();
+			offsets = new long[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			for (int i = 0; i < offsets.length; i++) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				}
+				int n = buffer.position();
+				md.reset();
+				md.update(buffer.array(), 0, n);
+				byte[] hash = md.digest();
+				String key = Utils.hexDigest(hash);
+				Long offset = known.get(key);
+				if (offset == null) {
+					deflater.reset();
+					deflater.setInput(buffer.array(), 0, n);
+					deflater.finish();
+					int stored = deflater.deflate(compressed);
+					offset = packEnd;
+					packOut.write(hash);
+					packOut.writeInt(n);
+					if (deflater.finished() && stored < n) {
+						packOut.writeInt(stored);
+						packOut.write(compressed, 0, stored);
+					} else {
+						stored = n;
+						packOut.writeInt(n);
+						packOut.write(buffer.array(), 0, n);
+					}
+					packEnd += RECORD_HEADER_LENGTH + stored;
+					added += RECORD_HEADER_LENGTH + stored;
+					known.put(key, offset);
+				}
+				offsets[i] = offset;
+			}
+			packOut.flush();
+			// the chunks must be on disk before a snapshot refers to them
+			pack.getFD().sync();
+		} finally {
+			deflater.end();
+			in.close();
+			pack.close();
+		}
+		writeSnapshot(snapshotFile, generation, length, offsets);
+		return added;
+	}
+
+
+	/**
+	 * Write the collection file stored in the given snapshot to target.
+	 */
+	public synchronized void restore(File snapshotFile, File target) throws IOException {
+		Snapshot snapshot = readSnapshot(snapshotFile);
+		RandomAccessFile pack = new RandomAccessFile(packFile(snapshot.mGeneration), "r");
+		FileOutputStream out = new FileOutputStream(target);
+		Inflater inflater = new Inflater();
+		try {
+			FileChannel outChannel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			byte[] compressed = new byte[CHUNK_SIZE];
+			for (long offset : snapshot.mOffsets) {
+				pack.seek(offset + HASH_LENGTH);
+				int n = pack.readInt();
+				int stored = pack.readInt();
+				buffer.clear();
+				if (stored == n) {
+					pack.readFully(buffer.array(), 0, n);
+				} else {
+					pack.readFully(compressed, 0, stored);
+					inflater.reset();
+					inflater.setInput(compressed, 0, stored);
+					try {
+						if (inflater.inflate(buffer.array(), 0, n) != n) {
+							throw new IOException("BackupStore: corrupt chunk at " + offset);
+						}
+					} catch (DataFormatException e) {
+						throw new IOException("BackupStore: corrupt chunk at " + offset + ": " + e.getMessage());
+					}
+				}
+				buffer.limit(n);
+				while (buffer.hasRemaining()) {
+					outChannel.write(buffer);
+				}
+			}
+			if (outChannel.size() != snapshot.mLength) {
+				throw new IOException("BackupStore: restored file has wrong size");
+			}
+			out.getFD().sync();
+		} finally {
+			inflater.end();
+			out.close();
+			pack.close();
+		}
+	}
+
+
+	/**
+	 * Drop chunks which are not used by any of the given snapshots anymore, if they make up a large part of the pack.
+	 * Must be called after deleting snapshots, with all remaining snapshots of this collection.
+	 */
+	public synchronized void compact(File[] snapshots) throws IOException {
+		if (!mStoreDir.isDirectory()) {
+			return;
+		}
+		long generation = currentGeneration();
+		File packFile = packFile(generation);
+		// referenced chunks of the current pack, by offset
+		TreeMap<Long, Long> moved = new TreeMap<Long, Long>();
+		HashMap<File, Snapshot> current = new HashMap<File, Snapshot>();
+		long[] usedGenerations = new long[snapshots.length];
+		for (int i = 0; i < snapshots.length; i++) {
+			Snapshot s = readSnapshot(snapshots[i]);
+			usedGenerations[i] = s.mGeneration;
+			if (s.mGeneration == generation) {
+				current.put(snapshots[i], s);
+				for (long offset : s.mOffsets) {
+					moved.put(offset, offset);
+				}
+			}
+		}
+		long used = 0;
+		long replaced = -1;
+		RandomAccessFile pack = packFile.exists() ? new RandomAccessFile(packFile, "r") : null;
+		try {
+			if (pack != null) {
+				for (long offset : moved.keySet()) {
+					used += recordLength(pack, offset);
+				}
+				if (used < pack.length() * MIN_PACK_USAGE) {
+					Log.i(AnkiDroidApp.TAG, "BackupStore: compacting pack, " + used + " of " + pack.length() + " bytes used");
+					// copy the referenced chunks into a new pack and point the snapshots to it
+					long newGeneration = generation + 1;
+					FileOutputStream fos = new FileOutputStream(packFile(newGeneration));
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, CHUNK_SIZE
+							+ RECORD_HEADER_LENGTH));
+					byte[] record = new byte[RECORD_HEADER_LENGTH + CHUNK_SIZE];
+					long newOffset = 0;
+					try {
+						for (long offset : moved.keySet()) {
+							int n = recordLength(pack, offset);
+							pack.seek(offset);
+							pack.readFully(record, 0, n);
+							out.write(record, 0, n);
+							moved.put(offset, newOffset);
+							newOffset += n;
+						}
+						out.flush();
+						// the chunks must be on disk before the snapshots refer to them
+						fos.getFD().sync();
+					} finally {
+						out.close();
+					}
+					for (int i = 0; i < snapshots.length; i++) {
+						Snapshot s = current.get(snapshots[i]);
+						if (s != null) {
+							long[] offsets = new long[s.mOffsets.length];
+							for (int j = 0; j < offsets.length; j++) {
+								offsets[j] = moved.get(s.mOffsets[j]);
+							}
+							writeSnapshot(snapshots[i], newGeneration, s.mLength, offsets);
+							usedGenerations[i] = newGeneration;
+						}
+					}
+					// java can't sync the directory entry of the new pack, so the replaced pack is kept until the
+					// next compaction instead
+					replaced = generation;
+				}
+			}
+		} finally {
+			if (pack != null) {
+				pack.close();
+			}
+		}
+		// remove packs which no snapshot refers to anymore, but keep the newest one for the next backup
+		long newest = currentGeneration();
+		Arrays.sort(usedGenerations);
+		for (File f : mStoreDir.listFiles()) {
+			long g = generationOf(f);
+			if (g >= 0 && g != newest && g != replaced && Arrays.binarySearch(usedGenerations, g) < 0) {
+				f.delete();
+			}
+		}
+	}
+
+
+	private static class Snapshot {
+		long mGeneration;
+		long mLength;
+		long[] mOffsets;
+	}
+
+
+	private void writeSnapshot(File snapshotFile, long generation, long length, long[] offsets) throws IOException {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(generation);
+			out.writeLong(length);
+			out.writeInt(CHUNK_SIZE);
+			out.writeInt(offsets.length);
+			for (long offset : offsets) {
+				out.writeLong(offset);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		long lastModified = snapshotFile.lastModified();
+		if (!tmp.renameTo(snapshotFile)) {
+			tmp.delete();
+			throw new IOException("BackupStore: could not write " + snapshotFile);
+		}
+		if (lastModified != 0) {
+			// BackupManager compares it to the collection's modification time
+			snapshotFile.setLastModified(lastModified);
+		}
+	}
+
+
+	private Snapshot readSnapshot(File snapshotFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException("BackupStore: " + snapshotFile + " is not a valid snapshot");
+			}
+			Snapshot s = new Snapshot();
+			s.mGeneration = in.readLong();
+			s.mLength = in.readLong();
+			if (in.readInt() != CHUNK_SIZE) {
+				throw new IOException("BackupStore: unsupported chunk size in " + snapshotFile);
+			}
+			s.mOffsets = new long[in.readInt()];
+			for (int i = 0; i < s.mOffsets.length; i++) {
+				s.mOffsets[i] = in.readLong();
+			}
+			return s;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Read the hashes of all chunks in a pack. An incomplete record at the end, left by an interrupted backup, is cut
+	 * off.
+	 */
+	private HashMap<String, Long> readPackIndex(File packFile) throws IOException {
+		HashMap<String, Long> index = new HashMap<String, Long>();
+		if (!packFile.exists()) {
+			return index;
+		}
+		RandomAccessFile pack = new RandomAccessFile(packFile, "rw");
+		try {
+			long length = pack.length();
+			long offset = 0;
+			byte[] hash = new byte[HASH_LENGTH];
+			while (offset + RECORD_HEADER_LENGTH <= length) {
+				pack.seek(offset);
+				pack.readFully(hash);
+				pack.readInt();
+				int n = pack.readInt();
+				if (n < 0 || n > CHUNK_SIZE || offset + RECORD_HEADER_LENGTH + n > length) {
+					break;
+				}
+				index.put(Utils.hexDigest(hash), offset);
+				offset += RECORD_HEADER_LENGTH + n;
+			}
+			if (offset != length) {
+				Log.w(AnkiDroidApp.TAG, "BackupStore: truncating incomplete pack " + packFile + " at " + offset);
+				pack.setLength(offset);
+			}
+		} catch (EOFException e) {
+			Log.w(AnkiDroidApp.TAG, "BackupStore: unexpected end of pack " + packFile);
+		} finally {
+			pack.close();
+		}
+		return index;
+	}
+
+
+	/** The size of the pack record at offset, including its header */
+	private static int recordLength(RandomAccessFile pack, long offset) throws IOException {
+		pack.seek(offset + HASH_LENGTH + 4);
+		return RECORD_HEADER_LENGTH + pack.readInt();
+	}
+
+
+	private File packFile(long generation) {
+		return new File(mStoreDir, PACK_PREFIX + generation + PACK_SUFFIX);
+	}
+
+
+	private static long generationOf(File f) {
+		String name = f.getName();
+		if (!name.startsWith(PACK_PREFIX) || !name.endsWith(PACK_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+
+	private long currentGeneration() {
+		long generation = 0;
+		File[] files = mStoreDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				generation = Math.max(generation, generationOf(f));
+			}
+		}
+		return generation;
+	}
+
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
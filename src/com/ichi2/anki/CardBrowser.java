@@ -771,7 +771,7 @@ public class CardBrowser extends Activity {
 								@Override
 								public void onCancel(DialogInterface arg0) {
 									canceled = true;
-									DeckTask.cancelTask();
+									DeckTask.cancelTask(DeckTask.TASK_TYPE_LOAD_CARDS);
 									closeCardBrowser();
 								}
 					});
@@ -783,7 +783,7 @@ public class CardBrowser extends Activity {
 								@Override
 								public void onCancel(DialogInterface arg0) {
 									canceled = true;
-									DeckTask.cancelTask();
+									DeckTask.cancelTask(DeckTask.TASK_TYPE_LOAD_CARDS);
 									closeCardBrowser();
 								}
 					});					
@@ -0,0 +1,262 @@
+/***************************************************************************************
+ * Copyright (c) 2012 Norbert Nagold <norbert.nagold@gmail.com>                         *
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki;
+
+import com.ichi2.libanki.Collection;
+import com.tomgibara.android.veecheck.util.PrefSettings;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Keeps the collection database in shape without a manual "check database".
+ * <p>
+ * The work is split by its cost. {@link #runSlice(Collection)} is run when the collection is about to be closed and
+ * only does small, bounded steps: it returns free pages to the file system with incremental vacuum steps until its
+ * time budget is used up. {@link #runIdleJob(String)} is run on the backup thread after the collection was closed, and
+ * only while charging. It does the statements whose duration grows with the collection: re-analyzing tables whose row
+ * count changed a lot since their statistics were gathered, the one full VACUUM needed to enable incremental vacuum,
+ * and a periodic quick_check. sqlite can't interrupt them, so they are bounded by size instead: they only run on files
+ * up to {@link #MAX_IDLE_JOB_SIZE}, one statement per run, and not at all once the collection is about to be reopened,
+ * see {@link #cancelIdleJob()}. For larger files the user is asked to run "check database", which does the same
+ * work with a progress dialog, see {@link #PREF_CHECK_NEEDED}.
+ */
+public class DatabaseMaintenance {
+
+	/** Time budget of one slice when running on battery */
+	private static final long IDLE_BUDGET = 300;
+	/** Time budget of one slice when charging */
+	private static final long CHARGING_BUDGET = 3000;
+
+	/** Tables whose statistics drive the query plans of the scheduler and the browser */
+	private static final String[] ANALYZED_TABLES = { "cards", "notes", "revlog" };
+	/** Statistics are considered stale once the row count of a table changed by this fraction */
+	private static final double STALE_RATIO = 0.2;
+
+	/** Free pages are only reclaimed once there are at least this many and they make up MAX_FREE_RATIO of the file */
+	private static final int MIN_FREE_PAGES = 256;
+	private static final double MAX_FREE_RATIO = 0.1;
+	/** Pages freed per incremental vacuum step */
+	private static final int VACUUM_STEP_PAGES = 256;
+
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+	/** Files larger than this are not analyzed, vacuumed or checked by the idle job, it would block reopening too long */
+	private static final long MAX_IDLE_JOB_SIZE = 16 * 1024 * 1024;
+
+	/** Days between two quick_checks */
+	private static final int QUICK_CHECK_INTERVAL = 7;
+	private static final String PREF_LAST_QUICK_CHECK = "lastQuickCheck";
+	/** Large collections are asked for a check at most once per QUICK_CHECK_INTERVAL */
+	private static final String PREF_LAST_CHECK_REQUEST = "lastDatabaseCheckRequest";
+	/**
+	 * Set when the quick_check failed or when the collection is too large for the idle job to do its work. The deck
+	 * picker then asks the user to run "check database", which clears it.
+	 */
+	public static final String PREF_CHECK_NEEDED = "databaseCheckNeeded";
+
+	/** Set when the collection is reopened, so that a pending idle job doesn't start another statement */
+	private static volatile boolean sIdleJobCancelled = false;
+
+
+	/* Prevent class from being instantiated */
+	private DatabaseMaintenance() {
+	}
+
+
+	/**
+	 * Run incremental vacuum steps for up to the time budget. Must not be called within a transaction.
+	 */
+	public static void runSlice(Collection col) {
+		Context context = AnkiDroidApp.getInstance().getBaseContext();
+		long start = System.currentTimeMillis();
+		long deadline = start + (isCharging(context) ? CHARGING_BUDGET : IDLE_BUDGET);
+		SQLiteDatabase db = col.getDb().getDatabase();
+		try {
+			if (!isFragmented(db) || autoVacuum(db) != AUTO_VACUUM_INCREMENTAL) {
+				return;
+			}
+			long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			while (free > 0 && System.currentTimeMillis() < deadline) {
+				// a step only frees a fixed number of pages, so it can't overrun the budget by much
+				db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+				free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			}
+			Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: incremental vacuum, " + free + " free pages left");
+		} catch (SQLException e) {
+			Log.e(AnkiDroidApp.TAG, "DatabaseMaintenance: " + e);
+		} finally {
+			Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: slice took " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+
+	/**
+	 * Run the most urgent of the size bound maintenance statements on the closed collection at path, if charging. The
+	 * collection must not be opened before this returned.
+	 */
+	public static void runIdleJob(String path) {
+		Context context = AnkiDroidApp.getInstance().getBaseContext();
+		if (sIdleJobCancelled || !isCharging(context)) {
+			return;
+		}
+		SharedPreferences prefs = PrefSettings.getSharedPrefs(context);
+		boolean small = new File(path).length() <= MAX_IDLE_JOB_SIZE;
+		long start = System.currentTimeMillis();
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE
+					| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			// statistics first, stale ones hurt every query
+			for (String table : ANALYZED_TABLES) {
+				if (statisticsStale(db, table)) {
+					if (!small) {
+						requestCheck(prefs, "statistics of " + table + " are stale");
+					} else if (!sIdleJobCancelled) {
+						Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: analyzing " + table);
+						db.execSQL("ANALYZE " + table);
+					}
+					return;
+				}
+			}
+
+			// switching to incremental auto vacuum needs one full rebuild of the file
+			if (isFragmented(db) && autoVacuum(db) != AUTO_VACUUM_INCREMENTAL) {
+				// takes effect with the next VACUUM, also the one of "check database"
+				db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+				if (!small) {
+					requestCheck(prefs, "incremental vacuum needs a full vacuum");
+				} else if (!sIdleJobCancelled) {
+					Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: enabling incremental vacuum");
+					db.execSQL("VACUUM");
+				}
+				return;
+			}
+
+			// integrity; large files are checked by "check database" only
+			long lastCheck = prefs.getLong(PREF_LAST_QUICK_CHECK, 0);
+			if (small && !sIdleJobCancelled
+					&& lastCheck + QUICK_CHECK_INTERVAL * 86400000L < System.currentTimeMillis()) {
+				String result = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+				boolean ok = "ok".equalsIgnoreCase(result);
+				if (!ok) {
+					Log.e(AnkiDroidApp.TAG, "DatabaseMaintenance: quick_check failed: " + result);
+				}
+				prefs.edit().putLong(PREF_LAST_QUICK_CHECK, System.currentTimeMillis())
+						.putBoolean(PREF_CHECK_NEEDED, !ok).commit();
+			}
+		} catch (SQLException e) {
+			Log.e(AnkiDroidApp.TAG, "DatabaseMaintenance: " + e);
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+			Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: idle job took " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+
+	/**
+	 * Called before the collection is reopened. An idle job which is still running finishes its current statement,
+	 * but doesn't start another one.
+	 */
+	public static void cancelIdleJob() {
+		sIdleJobCancelled = true;
+	}
+
+
+	/** Called before an idle job is started */
+	public static void resetIdleJob() {
+		sIdleJobCancelled = false;
+	}
+
+
+	private static void requestCheck(SharedPreferences prefs, String reason) {
+		long lastRequest = prefs.getLong(PREF_LAST_CHECK_REQUEST, 0);
+		if (lastRequest + QUICK_CHECK_INTERVAL * 86400000L < System.currentTimeMillis()) {
+			Log.i(AnkiDroidApp.TAG, "DatabaseMaintenance: asking for a database check, " + reason);
+			prefs.edit().putLong(PREF_LAST_CHECK_REQUEST, System.currentTimeMillis())
+					.putBoolean(PREF_CHECK_NEEDED, true).commit();
+		}
+	}
+
+
+	private static boolean isFragmented(SQLiteDatabase db) {
+		long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+		long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		return free >= MIN_FREE_PAGES && free >= pages * MAX_FREE_RATIO;
+	}
+
+
+	private static long autoVacuum(SQLiteDatabase db) {
+		return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+	}
+
+
+	/**
+	 * Compare the current row count of a table with the one recorded by the last ANALYZE. Tables which were never
+	 * analyzed are stale, unless they are empty.
+	 */
+	private static boolean statisticsStale(SQLiteDatabase db, String table) {
+		long rows = DatabaseUtils.longForQuery(db, "SELECT count() FROM " + table, null);
+		long analyzed = -1;
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("SELECT stat FROM sqlite_stat1 WHERE tbl = ? LIMIT 1",
+					new String[] { table });
+			if (cursor.moveToFirst()) {
+				// the first number of a stat entry is the row count of the table
+				String stat = cursor.getString(0);
+				int end = stat.indexOf(' ');
+				analyzed = Long.parseLong(end == -1 ? stat : stat.substring(0, end));
+			}
+		} catch (SQLException e) {
+			// no sqlite_stat1 yet
+		} catch (NumberFormatException e) {
+			Log.w(AnkiDroidApp.TAG, "DatabaseMaintenance: unexpected statistics for " + table);
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		if (analyzed == -1) {
+			return rows > 0;
+		}
+		return Math.abs(rows - analyzed) > Math.max(analyzed, 1) * STALE_RATIO;
+	}
+
+
+	private static boolean isCharging(Context context) {
+		// the battery broadcast is sticky, so no receiver needs to be registered
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) {
+			return false;
+		}
+		int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+		return status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+	}
+}
@@ -105,6 +105,7 @@ public class DeckPicker extends FragmentActivity {
 	private static final int DIALOG_LOAD_FAILED = 21;
 	private static final int DIALOG_RESTORE_BACKUP = 22;
 	private static final int DIALOG_SD_CARD_NOT_MOUNTED = 23;
+	private static final int DIALOG_CHECK_DATABASE_NEEDED = 24;
 
 	private String mDialogMessage;
 	private int[] mRepairValues;
@@ -439,6 +440,8 @@ public class DeckPicker extends FragmentActivity {
 				}
 			} else {
 				updateDecksList((TreeSet<Object[]>) data.result, (Integer)data.data[2], (Integer)data.data[3]);
+				// the synced counts replace the stored ones of the widgets
+				WidgetStatus.update(DeckPicker.this);
 				if (data.data.length > 0 && data.data[0] instanceof String && ((String)data.data[0]).length() > 0) {
 					String dataString = (String) data.data[0];
 					if (dataString.equals("upload")) {
@@ -550,6 +553,9 @@ public class DeckPicker extends FragmentActivity {
 					}
 				}
 			}
+			if (PrefSettings.getSharedPrefs(getBaseContext()).getBoolean(DatabaseMaintenance.PREF_CHECK_NEEDED, false)) {
+				showDialog(DIALOG_CHECK_DATABASE_NEEDED);
+			}
 		}
 
 		@Override
@@ -559,7 +565,7 @@ public class DeckPicker extends FragmentActivity {
 				@Override
 				public void onCancel(DialogInterface arg0) {
 					// TODO: close dbs?
-					DeckTask.cancelTask();
+					DeckTask.cancelTask(DeckTask.TASK_TYPE_OPEN_COLLECTION);
 					finish();
 				}
 			});
@@ -1242,6 +1248,27 @@ public class DeckPicker extends FragmentActivity {
 				 dialog = builder.create();
 			 break;
 
+	 	case DIALOG_CHECK_DATABASE_NEEDED:
+	 		builder.setTitle(res.getString(R.string.check_db_title));
+	 		builder.setIcon(android.R.drawable.ic_dialog_alert);
+	 		builder.setMessage(res.getString(R.string.check_db_needed_message));
+	 		builder.setPositiveButton(res.getString(R.string.check_db), new DialogInterface.OnClickListener() {
+	 			@Override
+	 			public void onClick(DialogInterface dialog, int which) {
+	 				integrityCheck();
+	 			}
+	 		});
+	 		builder.setNegativeButton(res.getString(R.string.later), new DialogInterface.OnClickListener() {
+	 			@Override
+	 			public void onClick(DialogInterface dialog, int which) {
+	 				// asked again when the next maintenance run finds it necessary
+	 				PrefSettings.getSharedPrefs(getBaseContext()).edit()
+	 						.putBoolean(DatabaseMaintenance.PREF_CHECK_NEEDED, false).commit();
+	 			}
+	 		});
+	 		dialog = builder.create();
+	 		break;
+
 	 	case DIALOG_ERROR_HANDLING:
 	 		builder.setTitle(res.getString(R.string.error_handling_title));
 	 		builder.setIcon(android.R.drawable.ic_dialog_alert);
@@ -2182,6 +2209,10 @@ public class DeckPicker extends FragmentActivity {
 			}
 			@Override
 			public void onProgressUpdate(TaskData... values) {
+				String message = values[0].getString();
+				if (message != null && mProgressDialog.isShowing()) {
+					mProgressDialog.setMessage(message);
+				}
 			}
 		}, new DeckTask.TaskData(mCol));
     }
@@ -9,7 +9,15 @@ import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,7 +37,7 @@ public class MetaDB {
     private static final String DATABASE_NAME = "ankidroid.db";
 
     /** The Database Version, increase if you want updates to happen on next upgrade. */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     // Possible values for the qa column of the languages table.
     /** The language refers to the question. */
@@ -45,6 +53,67 @@ public class MetaDB {
     /** The database object used by the meta-db. */
     private static SQLiteDatabase mMetaDb = null;
 
+    /*
+     * The languages, whiteboard states, custom dictionaries and widget status are read into memory once per process,
+     * lookups never touch the database. Changes are applied to the cache and the changed rows are written in one
+     * transaction on a background thread. All cache fields are guarded by sCacheLock.
+     */
+    private static final Object sCacheLock = new Object();
+    /** Held while writing, so that resets cannot interleave with a flush */
+    private static final Object sFlushLock = new Object();
+    private static final ExecutorService sFlushExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MetaDB");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static boolean sFlushScheduled = false;
+
+    /** Null until loaded */
+    private static HashMap<String, LanguageRow> sLanguages;
+    private static HashMap<String, Integer> sWhiteboardStates;
+    private static HashMap<String, Integer> sDictionaries;
+    private static HashMap<Long, DeckStatus> sWidgetStatus;
+    private static long sWidgetCutoff;
+
+    /** Keys of the rows changed since the last flush */
+    private static final HashSet<String> sDirtyLanguages = new HashSet<String>();
+    private static final HashSet<String> sDirtyWhiteboardStates = new HashSet<String>();
+    private static final HashSet<String> sDirtyDictionaries = new HashSet<String>();
+    private static final HashSet<Long> sDirtyWidgetStatus = new HashSet<Long>();
+    private static final HashSet<Long> sRemovedWidgetStatus = new HashSet<Long>();
+
+
+    /** A row of the languages table */
+    private static class LanguageRow {
+        final String mDeckPath;
+        final int mModelId;
+        final int mCardModelId;
+        final int mQa;
+        final String mLanguage;
+
+
+        LanguageRow(String deckPath, int modelId, int cardModelId, int qa, String language) {
+            mDeckPath = deckPath;
+            mModelId = modelId;
+            mCardModelId = cardModelId;
+            mQa = qa;
+            mLanguage = language;
+        }
+
+
+        String key() {
+            return key(mDeckPath, mModelId, mCardModelId, mQa);
+        }
+
+
+        static String key(String deckPath, int modelId, int cardModelId, int qa) {
+            return deckPath + "\u001f" + modelId + "\u001f" + cardModelId + "\u001f" + qa;
+        }
+    }
+
 
     /** Remove any pairs of quotes from the given text. */
     private static String stripQuotes(String text) {
@@ -98,6 +167,13 @@ public class MetaDB {
             // Use pragma to get info about widgetStatus.
             Cursor c = mMetaDb.rawQuery("PRAGMA table_info(widgetStatus)", null);
             int columnNumber = c.getCount();
+            boolean hasNextDue = false;
+            while (c.moveToNext()) {
+                if ("nextDue".equals(c.getString(c.getColumnIndex("name")))) {
+                    hasNextDue = true;
+                }
+            }
+            c.close();
             if (columnNumber > 0) {
                 if (columnNumber < 7) {
                     mMetaDb.execSQL(
@@ -107,6 +183,14 @@ public class MetaDB {
                             "ALTER TABLE widgetStatus "
                                     + "ADD COLUMN time INTEGER NOT NULL DEFAULT '0'");
                 }
+                if (!hasNextDue) {
+                    mMetaDb.execSQL(
+                            "ALTER TABLE widgetStatus "
+                                    + "ADD COLUMN nextDue INTEGER NOT NULL DEFAULT '0'");
+                    mMetaDb.execSQL(
+                            "ALTER TABLE widgetStatus "
+                                    + "ADD COLUMN dayCutoff INTEGER NOT NULL DEFAULT '0'");
+                }
             } else {
                 mMetaDb.execSQL(
                     "CREATE TABLE IF NOT EXISTS widgetStatus ("
@@ -116,7 +200,9 @@ public class MetaDB {
                     + "lrnCards INTEGER NOT NULL, "
                     + "dueCards INTEGER NOT NULL, "
                     + "progress INTEGER NOT NULL, "
-            		+ "eta INTEGER NOT NULL)");
+            		+ "eta INTEGER NOT NULL, "
+                    + "nextDue INTEGER NOT NULL DEFAULT '0', "
+                    + "dayCutoff INTEGER NOT NULL DEFAULT '0')");
             }
 //        }
         mMetaDb.setVersion(databaseVersion);
@@ -132,70 +218,96 @@ public class MetaDB {
     }
 
 
-    /** Close the meta-db. */
+    /** Close the meta-db, after writing pending changes. */
     public static void closeDB() {
-        if (mMetaDb != null && mMetaDb.isOpen()) {
-            mMetaDb.close();
-            mMetaDb = null;
-            Log.i(AnkiDroidApp.TAG, "Closing MetaDB");
+        synchronized (sFlushLock) {
+            if (mMetaDb != null && mMetaDb.isOpen()) {
+                flush();
+                mMetaDb.close();
+                mMetaDb = null;
+                Log.i(AnkiDroidApp.TAG, "Closing MetaDB");
+            }
         }
     }
 
 
     /** Reset the content of the meta-db, erasing all its content. */
     public static boolean resetDB(Context context) {
-        openDBIfClosed(context);
-        try {
-            mMetaDb.execSQL("DROP TABLE IF EXISTS languages;");
-            Log.i(AnkiDroidApp.TAG, "Resetting all language assignment");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS whiteboardState;");
-            Log.i(AnkiDroidApp.TAG, "Resetting whiteboard state");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS customDictionary;");
-            Log.i(AnkiDroidApp.TAG, "Resetting custom Dictionary");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS widgetStatus;");
-            Log.i(AnkiDroidApp.TAG, "Resetting widget status");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS intentInformation;");
-            Log.i(AnkiDroidApp.TAG, "Resetting intentInformation");
-            upgradeDB(mMetaDb, DATABASE_VERSION);
-            return true;
-        } catch(Exception e) {
-            Log.e("Error", "Error resetting MetaDB ", e);
+        synchronized (sFlushLock) {
+            openDBIfClosed(context);
+            synchronized (sCacheLock) {
+                dropCache();
+            }
+            try {
+                mMetaDb.execSQL("DROP TABLE IF EXISTS languages;");
+                Log.i(AnkiDroidApp.TAG, "Resetting all language assignment");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS whiteboardState;");
+                Log.i(AnkiDroidApp.TAG, "Resetting whiteboard state");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS customDictionary;");
+                Log.i(AnkiDroidApp.TAG, "Resetting custom Dictionary");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS widgetStatus;");
+                Log.i(AnkiDroidApp.TAG, "Resetting widget status");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS intentInformation;");
+                Log.i(AnkiDroidApp.TAG, "Resetting intentInformation");
+                upgradeDB(mMetaDb, DATABASE_VERSION);
+                return true;
+            } catch(Exception e) {
+                Log.e("Error", "Error resetting MetaDB ", e);
+            }
+            return false;
         }
-        return false;
     }
 
 
     /** Reset the language associations for all the decks and card models. */
     public static boolean resetLanguages(Context context) {
-        if (mMetaDb == null || !mMetaDb.isOpen()) {
-            openDB(context);
-        }
-        try {
-            Log.i(AnkiDroidApp.TAG, "Resetting all language assignments");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS languages;");
-            openDB(context);
-            return true;
-        } catch(Exception e) {
-            Log.e("Error", "Error resetting MetaDB ", e);
+        synchronized (sFlushLock) {
+            if (mMetaDb == null || !mMetaDb.isOpen()) {
+                openDB(context);
+            }
+            synchronized (sCacheLock) {
+                if (sLanguages != null) {
+                    sLanguages.clear();
+                }
+                sDirtyLanguages.clear();
+            }
+            try {
+                Log.i(AnkiDroidApp.TAG, "Resetting all language assignments");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS languages;");
+                upgradeDB(mMetaDb, DATABASE_VERSION);
+                return true;
+            } catch(Exception e) {
+                Log.e("Error", "Error resetting MetaDB ", e);
+            }
+            return false;
         }
-        return false;
     }
 
 
     /** Reset the widget status. */
     public static boolean resetWidget(Context context) {
-        if (mMetaDb == null || !mMetaDb.isOpen()) {
-            openDB(context);
-        }
-        try {
-            Log.i(AnkiDroidApp.TAG, "Resetting widget status");
-            mMetaDb.execSQL("DROP TABLE IF EXISTS widgetStatus;");
-            openDB(context);
-            return true;
-        } catch(Exception e) {
-            Log.e("Error", "Error resetting widgetStatus ", e);
+        synchronized (sFlushLock) {
+            if (mMetaDb == null || !mMetaDb.isOpen()) {
+                openDB(context);
+            }
+            synchronized (sCacheLock) {
+                if (sWidgetStatus != null) {
+                    sWidgetStatus.clear();
+                }
+                sWidgetCutoff = 0;
+                sDirtyWidgetStatus.clear();
+                sRemovedWidgetStatus.clear();
+            }
+            try {
+                Log.i(AnkiDroidApp.TAG, "Resetting widget status");
+                mMetaDb.execSQL("DROP TABLE IF EXISTS widgetStatus;");
+                upgradeDB(mMetaDb, DATABASE_VERSION);
+                return true;
+            } catch(Exception e) {
+                Log.e("Error", "Error resetting widgetStatus ", e);
+            }
+            return false;
         }
-        return false;
     }
 
 
@@ -207,7 +319,7 @@ public class MetaDB {
         try {
             Log.i(AnkiDroidApp.TAG, "Resetting intent information");
             mMetaDb.execSQL("DROP TABLE IF EXISTS intentInformation;");
-            openDB(context);
+            upgradeDB(mMetaDb, DATABASE_VERSION);
             return true;
         } catch(Exception e) {
             Log.e("Error", "Error resetting intentInformation ", e);
@@ -215,6 +327,206 @@ public class MetaDB {
         return false;
     }
 
+
+    /**
+     * Load the cached tables, unless they already are. Must be called holding sCacheLock.
+     */
+    private static void loadIfNeeded(Context context) {
+        if (sLanguages != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        HashMap<String, LanguageRow> languages = new HashMap<String, LanguageRow>();
+        HashMap<String, Integer> whiteboardStates = new HashMap<String, Integer>();
+        HashMap<String, Integer> dictionaries = new HashMap<String, Integer>();
+        HashMap<Long, DeckStatus> widgetStatus = new HashMap<Long, DeckStatus>();
+        long widgetCutoff = 0;
+        openDBIfClosed(context);
+        Cursor cur = null;
+        try {
+            if (mMetaDb == null) {
+                // the meta-db could not be opened, work from an empty cache
+                throw new SQLiteException("MetaDB not open");
+            }
+            cur = mMetaDb.rawQuery("SELECT deckpath, modelid, cardmodelid, qa, language FROM languages", null);
+            while (cur.moveToNext()) {
+                LanguageRow row = new LanguageRow(cur.getString(0), cur.getInt(1), cur.getInt(2), cur.getInt(3),
+                        cur.getString(4));
+                // the first stored association wins, as it did when querying with LIMIT 1
+                if (!languages.containsKey(row.key())) {
+                    languages.put(row.key(), row);
+                }
+            }
+            cur.close();
+            cur = mMetaDb.rawQuery("SELECT deckpath, state FROM whiteboardState", null);
+            while (cur.moveToNext()) {
+                whiteboardStates.put(cur.getString(0), cur.getInt(1));
+            }
+            cur.close();
+            cur = mMetaDb.rawQuery("SELECT deckpath, dictionary FROM customDictionary", null);
+            while (cur.moveToNext()) {
+                dictionaries.put(cur.getString(0), cur.getInt(1));
+            }
+            cur.close();
+            cur = mMetaDb.rawQuery("SELECT deckId, deckName, newCards, lrnCards, dueCards, progress, eta, nextDue, "
+                    + "dayCutoff FROM widgetStatus", null);
+            while (cur.moveToNext()) {
+                widgetStatus.put(cur.getLong(0), new DeckStatus(cur.getLong(0), cur.getString(1), cur.getInt(2),
+                        cur.getInt(3), cur.getInt(4), cur.getInt(5), cur.getInt(6), cur.getLong(7)));
+                widgetCutoff = widgetCutoff == 0 ? cur.getLong(8) : Math.min(widgetCutoff, cur.getLong(8));
+            }
+        } catch (SQLiteException e) {
+            Log.e(AnkiDroidApp.TAG, "Error while loading MetaDB", e);
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+        sLanguages = languages;
+        sWhiteboardStates = whiteboardStates;
+        sDictionaries = dictionaries;
+        sWidgetStatus = widgetStatus;
+        sWidgetCutoff = widgetCutoff;
+        Log.i(AnkiDroidApp.TAG, "MetaDB loaded in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    /** Load the cached tables on a background thread, so that the first lookup does not wait for the disk. */
+    public static void preload(final Context context) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sCacheLock) {
+                    loadIfNeeded(context);
+                }
+            }
+        }, "MetaDB preload");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+
+    /** Forget the cached tables and unwritten changes. Must be called holding sCacheLock. */
+    private static void dropCache() {
+        sLanguages = null;
+        sWhiteboardStates = null;
+        sDictionaries = null;
+        sWidgetStatus = null;
+        sWidgetCutoff = 0;
+        sDirtyLanguages.clear();
+        sDirtyWhiteboardStates.clear();
+        sDirtyDictionaries.clear();
+        sDirtyWidgetStatus.clear();
+        sRemovedWidgetStatus.clear();
+    }
+
+
+    /** Write the changed rows on the flush thread. Must be called holding sCacheLock. */
+    private static void scheduleFlush(final Context context) {
+        if (sFlushScheduled) {
+            return;
+        }
+        sFlushScheduled = true;
+        sFlushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sFlushLock) {
+                    openDBIfClosed(context);
+                    flush();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Write all changed rows of the cache to the meta-db in one transaction. Must be called holding sFlushLock, which
+     * keeps resets from running in between taking the changes and writing them.
+     */
+    private static void flush() {
+        ArrayList<LanguageRow> languages = new ArrayList<LanguageRow>();
+        HashMap<String, Integer> whiteboardStates = new HashMap<String, Integer>();
+        HashMap<String, Integer> dictionaries = new HashMap<String, Integer>();
+        ArrayList<DeckStatus> widgetStatus = new ArrayList<DeckStatus>();
+        long[] removedWidgetStatus;
+        long widgetCutoff;
+        synchronized (sCacheLock) {
+            sFlushScheduled = false;
+            if (mMetaDb == null || !mMetaDb.isOpen() || sLanguages == null) {
+                return;
+            }
+            for (String key : sDirtyLanguages) {
+                languages.add(sLanguages.get(key));
+            }
+            for (String deckPath : sDirtyWhiteboardStates) {
+                whiteboardStates.put(deckPath, sWhiteboardStates.get(deckPath));
+            }
+            for (String deckPath : sDirtyDictionaries) {
+                dictionaries.put(deckPath, sDictionaries.get(deckPath));
+            }
+            for (long deckId : sDirtyWidgetStatus) {
+                widgetStatus.add(sWidgetStatus.get(deckId));
+            }
+            removedWidgetStatus = new long[sRemovedWidgetStatus.size()];
+            int i = 0;
+            for (long deckId : sRemovedWidgetStatus) {
+                removedWidgetStatus[i++] = deckId;
+            }
+            widgetCutoff = sWidgetCutoff;
+            sDirtyLanguages.clear();
+            sDirtyWhiteboardStates.clear();
+            sDirtyDictionaries.clear();
+            sDirtyWidgetStatus.clear();
+            sRemovedWidgetStatus.clear();
+        }
+        int rows = languages.size() + whiteboardStates.size() + dictionaries.size() + widgetStatus.size()
+                + removedWidgetStatus.length;
+        if (rows == 0) {
+            return;
+        }
+        try {
+            mMetaDb.beginTransaction();
+            try {
+                for (LanguageRow row : languages) {
+                    Object[] args = new Object[] { row.mDeckPath, row.mModelId, row.mCardModelId, row.mQa };
+                    mMetaDb.execSQL("DELETE FROM languages WHERE deckpath = ? AND modelid = ? AND cardmodelid = ? "
+                            + "AND qa = ?", args);
+                    mMetaDb.execSQL("INSERT INTO languages (deckpath, modelid, cardmodelid, qa, language) "
+                            + "VALUES (?, ?, ?, ?, ?)",
+                            new Object[] { row.mDeckPath, row.mModelId, row.mCardModelId, row.mQa, row.mLanguage });
+                }
+                for (Map.Entry<String, Integer> entry : whiteboardStates.entrySet()) {
+                    mMetaDb.execSQL("DELETE FROM whiteboardState WHERE deckpath = ?", new Object[] { entry.getKey() });
+                    mMetaDb.execSQL("INSERT INTO whiteboardState (deckpath, state) VALUES (?, ?)",
+                            new Object[] { entry.getKey(), entry.getValue() });
+                }
+                for (Map.Entry<String, Integer> entry : dictionaries.entrySet()) {
+                    mMetaDb.execSQL("DELETE FROM customDictionary WHERE deckpath = ?", new Object[] { entry.getKey() });
+                    mMetaDb.execSQL("INSERT INTO customDictionary (deckpath, dictionary) VALUES (?, ?)",
+                            new Object[] { entry.getKey(), entry.getValue() });
+                }
+                for (long deckId : removedWidgetStatus) {
+                    mMetaDb.execSQL("DELETE FROM widgetStatus WHERE deckId = " + deckId);
+                }
+                for (DeckStatus deck : widgetStatus) {
+                    mMetaDb.execSQL("INSERT OR REPLACE INTO widgetStatus(deckId, deckName, newCards, lrnCards, dueCards, progress, eta, nextDue, dayCutoff) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                            new Object[]{deck.mDeckId, deck.mDeckName, deck.mNewCards, deck.mLrnCards, deck.mDueCards, deck.mProgress, deck.mEta, deck.mNextDue, widgetCutoff}
+                            );
+                }
+                mMetaDb.setTransactionSuccessful();
+            } finally {
+                mMetaDb.endTransaction();
+            }
+            Log.i(AnkiDroidApp.TAG, "MetaDB: wrote " + rows + " changed rows");
+        } catch (IllegalStateException e) {
+            Log.e(AnkiDroidApp.TAG, "MetaDB.flush: failed", e);
+        } catch (SQLiteException e) {
+            Log.e(AnkiDroidApp.TAG, "MetaDB.flush: failed", e);
+        }
+    }
+
+
     /**
      * Associates a language to a deck, model, and card model for a given type.
      *
@@ -227,17 +539,14 @@ public class MetaDB {
      */
     public static void storeLanguage(Context context, String deckPath, int modelId, int cardModelId, int qa,
             String language) {
-        openDBIfClosed(context);
-        deckPath = stripQuotes(deckPath);
-        try {
-            mMetaDb.execSQL(
-                    "INSERT INTO languages (deckpath, modelid, cardmodelid, qa, language) "
-                            + " VALUES (?, ?, ?, ?, ?);",
-                            new Object[]{deckPath, modelId, cardModelId, qa, language});
-            Log.i(AnkiDroidApp.TAG, "Store language for deck " + deckPath);
-        } catch(Exception e) {
-            Log.e("Error", "Error storing language in MetaDB ", e);
+        LanguageRow row = new LanguageRow(stripQuotes(deckPath), modelId, cardModelId, qa, language);
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            sLanguages.put(row.key(), row);
+            sDirtyLanguages.add(row.key());
+            scheduleFlush(context);
         }
+        Log.i(AnkiDroidApp.TAG, "Store language for deck " + row.mDeckPath);
     }
 
 
@@ -253,31 +562,12 @@ public class MetaDB {
      *        association is defined
      */
     public static String getLanguage(Context context, String deckPath, int modelId, int cardModelId, int qa) {
-        openDBIfClosed(context);
-        String language = "";
-        deckPath = stripQuotes(deckPath);
-        Cursor cur = null;
-        try {
-            String query =
-                    "SELECT language FROM languages "
-                            + "WHERE deckpath = \'" + deckPath+ "\' "
-                            + "AND modelid = " + modelId + " "
-                            + "AND cardmodelid = " + cardModelId + " "
-                            + "AND qa = " + qa + " "
-                            + "LIMIT 1";
-            cur = mMetaDb.rawQuery(query, null);
-            Log.i(AnkiDroidApp.TAG, "getLanguage: " + query);
-            if (cur.moveToNext()) {
-                language = cur.getString(0);
-            }
-        } catch(Exception e) {
-            Log.e("Error", "Error fetching language ", e);
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
+        String key = LanguageRow.key(stripQuotes(deckPath), modelId, cardModelId, qa);
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            LanguageRow row = sLanguages.get(key);
+            return row != null ? row.mLanguage : "";
         }
-        return language;
     }
 
 
@@ -288,16 +578,28 @@ public class MetaDB {
      * @return whether an error occurred while resetting the language for the deck
      */
     public static boolean resetDeckLanguages(Context context, String deckPath) {
-        openDBIfClosed(context);
         deckPath = stripQuotes(deckPath);
-        try {
-            mMetaDb.execSQL("DELETE FROM languages WHERE deckpath = \'" + deckPath + "\';");
-            Log.i(AnkiDroidApp.TAG, "Resetting language assignment for deck " + deckPath);
-            return true;
-        } catch(Exception e) {
-            Log.e("Error", "Error resetting deck language", e);
+        synchronized (sFlushLock) {
+            openDBIfClosed(context);
+            synchronized (sCacheLock) {
+                loadIfNeeded(context);
+                for (Iterator<LanguageRow> it = sLanguages.values().iterator(); it.hasNext();) {
+                    LanguageRow row = it.next();
+                    if (row.mDeckPath.equals(deckPath)) {
+                        sDirtyLanguages.remove(row.key());
+                        it.remove();
+                    }
+                }
+            }
+            try {
+                mMetaDb.execSQL("DELETE FROM languages WHERE deckpath = ?", new Object[] { deckPath });
+                Log.i(AnkiDroidApp.TAG, "Resetting language assignment for deck " + deckPath);
+                return true;
+            } catch(Exception e) {
+                Log.e("Error", "Error resetting deck language", e);
+            }
+            return false;
         }
-        return false;
     }
 
 
@@ -308,23 +610,10 @@ public class MetaDB {
      * @return 1 if the whiteboard should be shown, 0 otherwise
      */
     public static int getWhiteboardState(Context context, String deckPath) {
-        openDBIfClosed(context);
-        Cursor cur = null;
-        try {
-            cur = mMetaDb.rawQuery("SELECT state FROM whiteboardState"
-                    + " WHERE deckpath = \'" + stripQuotes(deckPath) + "\'", null);
-            if (cur.moveToNext()) {
-                return cur.getInt(0);
-            } else {
-                return 1;
-            }
-        } catch(Exception e) {
-            Log.e("Error", "Error retrieving whiteboard state from MetaDB ", e);
-            return 0;
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            Integer state = sWhiteboardStates.get(stripQuotes(deckPath));
+            return state != null ? state : 1;
         }
     }
 
@@ -336,30 +625,14 @@ public class MetaDB {
      * @param state 1 if the whiteboard should be shown, 0 otherwise
      */
     public static void storeWhiteboardState(Context context, String deckPath, int state) {
-        openDBIfClosed(context);
         deckPath = stripQuotes(deckPath);
-        Cursor cur = null;
-        try {
-            cur = mMetaDb.rawQuery("SELECT _id FROM whiteboardState"
-                    + " WHERE deckpath = \'" + deckPath + "\'", null);
-            if (cur.moveToNext()) {
-                mMetaDb.execSQL("UPDATE whiteboardState "
-                        + "SET deckpath=\'" + deckPath + "\', "
-                        + "state=" + Integer.toString(state) + " "
-                        + "WHERE _id=" + cur.getString(0) + ";");
-                Log.i(AnkiDroidApp.TAG, "Store whiteboard state (" + state + ") for deck " + deckPath);
-            } else {
-                mMetaDb.execSQL("INSERT INTO whiteboardState (deckpath, state) VALUES (?, ?)",
-                        new Object[]{deckPath, state});
-                Log.i(AnkiDroidApp.TAG, "Store whiteboard state (" + state + ") for deck " + deckPath);
-            }
-        } catch(Exception e) {
-            Log.e("Error", "Error storing whiteboard state in MetaDB ", e);
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            sWhiteboardStates.put(deckPath, state);
+            sDirtyWhiteboardStates.add(deckPath);
+            scheduleFlush(context);
         }
+        Log.i(AnkiDroidApp.TAG, "Store whiteboard state (" + state + ") for deck " + deckPath);
     }
 
 
@@ -370,23 +643,10 @@ public class MetaDB {
      * @return integer number of dictionary, -1 if not set (standard dictionary will be used)
      */
     public static int getLookupDictionary(Context context, String deckPath) {
-        openDBIfClosed(context);
-        Cursor cur = null;
-        try {
-            cur = mMetaDb.rawQuery("SELECT dictionary FROM customDictionary"
-                    + " WHERE deckpath = \'" + stripQuotes(deckPath) + "\'", null);
-            if (cur.moveToNext()) {
-                return cur.getInt(0);
-            } else {
-                return -1;
-            }
-        } catch(Exception e) {
-            Log.e("Error", "Error retrieving custom dictionary from MetaDB ", e);
-            return -1;
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            Integer dictionary = sDictionaries.get(stripQuotes(deckPath));
+            return dictionary != null ? dictionary : -1;
         }
     }
 
@@ -398,30 +658,14 @@ public class MetaDB {
      * @param dictionary integer number of dictionary, -1 if not set (standard dictionary will be used)
      */
     public static void storeLookupDictionary(Context context, String deckPath, int dictionary) {
-        openDBIfClosed(context);
         deckPath = stripQuotes(deckPath);
-        Cursor cur = null;
-        try {
-            cur = mMetaDb.rawQuery("SELECT _id FROM customDictionary"
-                    + " WHERE deckpath = \'" + deckPath + "\'", null);
-            if (cur.moveToNext()) {
-                mMetaDb.execSQL("UPDATE customDictionary "
-                        + "SET deckpath=\'" + deckPath + "\', "
-                        + "dictionary=" + Integer.toString(dictionary) + " "
-                        + "WHERE _id=" + cur.getString(0) + ";");
-                Log.i(AnkiDroidApp.TAG, "Store custom dictionary (" + dictionary + ") for deck " + deckPath);
-            } else {
-                mMetaDb.execSQL("INSERT INTO customDictionary (deckpath, dictionary) VALUES (?, ?)",
-                        new Object[]{deckPath, dictionary});
-                Log.i(AnkiDroidApp.TAG, "Store custom dictionary (" + dictionary + ") for deck " + deckPath);
-            }
-        } catch(Exception e) {
-            Log.e("Error", "Error storing custom dictionary to MetaDB ", e);
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            sDictionaries.put(deckPath, dictionary);
+            sDirtyDictionaries.add(deckPath);
+            scheduleFlush(context);
         }
+        Log.i(AnkiDroidApp.TAG, "Store custom dictionary (" + dictionary + ") for deck " + deckPath);
     }
 
 
@@ -431,36 +675,18 @@ public class MetaDB {
      * @return an array of {@link DeckStatus} objects, each representing the status of one of the known decks
      */
     public static DeckStatus[] getWidgetStatus(Context context) {
-        openDBIfClosed(context);
-        Cursor cursor = null;
-        try {
-            cursor = mMetaDb.query("widgetStatus",
-                    new String[]{"deckId", "deckName", "newCards", "lrnCards", "dueCards", "progress", "eta"},
-                    null, null, null, null, "deckName");
-            int count = cursor.getCount();
-            DeckStatus[] decks = new DeckStatus[count];
-            for(int index = 0; index < count; ++index) {
-                if (!cursor.moveToNext()) {
-                    throw new SQLiteException("cursor count was incorrect");
-                }
-                decks[index] = new DeckStatus(
-                        cursor.getLong(cursor.getColumnIndexOrThrow("deckId")),
-                        cursor.getString(cursor.getColumnIndexOrThrow("deckName")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("newCards")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("lrnCards")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("dueCards")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("progress")),
-                		cursor.getInt(cursor.getColumnIndexOrThrow("eta")));
-            }
-            return decks;
-        } catch (SQLiteException e) {
-            Log.e(AnkiDroidApp.TAG, "Error while querying widgetStatus", e);
-        } finally {
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
-            }
+        DeckStatus[] decks;
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            decks = sWidgetStatus.values().toArray(new DeckStatus[sWidgetStatus.size()]);
         }
-        return new DeckStatus[0];
+        Arrays.sort(decks, new Comparator<DeckStatus>() {
+            @Override
+            public int compare(DeckStatus lhs, DeckStatus rhs) {
+                return lhs.mDeckName.compareTo(rhs.mDeckName);
+            }
+        });
+        return decks;
     }
 
 
@@ -470,29 +696,19 @@ public class MetaDB {
      * @return an int array, containing due, progress, eta
      */
     public static int[] getWidgetSmallStatus(Context context) {
-        openDBIfClosed(context);
-        Cursor cursor = null;
         int due = 0;
         int progress = 0;
         int eta = 0;
         boolean noDeck = true;
-        try {
-            cursor = mMetaDb.query("widgetStatus",
-                    new String[]{"deckName", "newCards", "lrnCards", "dueCards", "progress", "eta"},
-                    null, null, null, null, null);
-            while (cursor.moveToNext()) {
-            	noDeck = false;
-            	if (cursor.getString(0).split("::").length == 1) {
-                	due += cursor.getInt(1) + cursor.getInt(2) + cursor.getInt(3);
-                	progress = cursor.getInt(4);
-                	eta = cursor.getInt(5);
-            	}
-            }
-        } catch (SQLiteException e) {
-            Log.e(AnkiDroidApp.TAG, "Error while querying widgetStatus", e);
-        } finally {
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            for (DeckStatus deck : sWidgetStatus.values()) {
+                noDeck = false;
+                if (deck.mDeckName.split("::").length == 1) {
+                    due += deck.mNewCards + deck.mLrnCards + deck.mDueCards;
+                    progress = deck.mProgress;
+                    eta = deck.mEta;
+                }
             }
         }
         return new int[]{noDeck ? -1 : due, progress, eta};
@@ -500,61 +716,100 @@ public class MetaDB {
 
 
     public static int getNotificationStatus(Context context) {
-        openDBIfClosed(context);
-        Cursor cursor = null;
         int due = 0;
-        try {
-            cursor = mMetaDb.query("widgetStatus",
-                    new String[]{"dueCards", "failedCards", "newCards"},
-                    null, null, null, null, null);
-            while (cursor.moveToNext()) {
-            	due += cursor.getInt(0) + cursor.getInt(1) + cursor.getInt(2);
-            }
-        } catch (SQLiteException e) {
-            Log.e(AnkiDroidApp.TAG, "Error while querying widgetStatus", e);
-        } finally {
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            for (DeckStatus deck : sWidgetStatus.values()) {
+                // counts of parent decks include their children
+                if (deck.mDeckName.split("::").length == 1) {
+                    due += deck.mDueCards + deck.mLrnCards + deck.mNewCards;
+                }
             }
         }
         return due;
     }
 
 
+    /**
+     * Returns the time (in seconds) until which the stored widget status is valid. Besides studying and syncing, the
+     * counts only change when a learning card of a deck becomes due, or when the day cutoff they were computed for
+     * is reached, whichever comes first.
+     *
+     * @return the end of validity, or 0 if there is no stored status
+     */
+    public static long getWidgetStatusValidUntil(Context context) {
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            if (sWidgetStatus.isEmpty()) {
+                return 0;
+            }
+            long validUntil = sWidgetCutoff;
+            for (DeckStatus deck : sWidgetStatus.values()) {
+                validUntil = Math.min(validUntil, deck.mNextDue);
+            }
+            return validUntil;
+        }
+    }
+
+
+    /**
+     * Returns the earliest next due time (in seconds) of the stored decks which lies after the given time.
+     *
+     * @return the next due time, or 0 if there is none
+     */
+    public static long getWidgetStatusNextDue(Context context, long after) {
+        long nextDue = 0;
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            for (DeckStatus deck : sWidgetStatus.values()) {
+                if (deck.mNextDue > after && (nextDue == 0 || deck.mNextDue < nextDue)) {
+                    nextDue = deck.mNextDue;
+                }
+            }
+        }
+        return nextDue;
+    }
+
+
     /**
      * Stores the current state of the widget.
      * <p>
-     * It replaces any stored state for the widget.
+     * It replaces any stored state for the widget. Only rows which changed are written.
      *
      * @param decks an array of {@link DeckStatus} objects, one for each of the know decks.
+     * @param dayCutoff the end of the scheduler day the counts were computed for, in seconds
      */
-    public static void storeWidgetStatus(Context context, DeckStatus[] decks) {
-        openDBIfClosed(context);
-        try {
-        	mMetaDb.beginTransaction();
-            try {
-                // First clear all the existing content.
-                mMetaDb.execSQL("DELETE FROM widgetStatus");
-                for (DeckStatus deck : decks) {
-                    mMetaDb.execSQL("INSERT INTO widgetStatus(deckId, deckName, newCards, lrnCards, dueCards, progress, eta) "
-                            + "VALUES (?, ?, ?, ?, ?, ?, ?)",
-                            new Object[]{deck.mDeckId, deck.mDeckName, deck.mNewCards, deck.mLrnCards, deck.mDueCards, deck.mProgress, deck.mEta}
-                            );
+    public static void storeWidgetStatus(Context context, DeckStatus[] decks, long dayCutoff) {
+        synchronized (sCacheLock) {
+            loadIfNeeded(context);
+            boolean newDay = dayCutoff != sWidgetCutoff;
+            HashSet<Long> removed = new HashSet<Long>(sWidgetStatus.keySet());
+            for (DeckStatus deck : decks) {
+                removed.remove(deck.mDeckId);
+                DeckStatus old = sWidgetStatus.put(deck.mDeckId, deck);
+                if (newDay || old == null || !sameStatus(old, deck)) {
+                    sDirtyWidgetStatus.add(deck.mDeckId);
                 }
-                mMetaDb.setTransactionSuccessful();
-            } finally {
-                mMetaDb.endTransaction();            	
             }
-        } catch (IllegalStateException e) {
-            Log.e(AnkiDroidApp.TAG, "MetaDB.storeWidgetStatus: failed", e);
-        } catch (SQLiteException e) {
-            Log.e(AnkiDroidApp.TAG, "MetaDB.storeWidgetStatus: failed", e);
-            closeDB();
-            Log.i(AnkiDroidApp.TAG, "Trying to reset Widget: " + resetWidget(context));
+            for (long deckId : removed) {
+                sWidgetStatus.remove(deckId);
+                sDirtyWidgetStatus.remove(deckId);
+                sRemovedWidgetStatus.add(deckId);
+            }
+            sWidgetCutoff = dayCutoff;
+            if (!sDirtyWidgetStatus.isEmpty() || !sRemovedWidgetStatus.isEmpty()) {
+                scheduleFlush(context);
+            }
         }
     }
 
 
+    private static boolean sameStatus(DeckStatus a, DeckStatus b) {
+        return a.mDeckName.equals(b.mDeckName) && a.mNewCards == b.mNewCards && a.mLrnCards == b.mLrnCards
+                && a.mDueCards == b.mDueCards && a.mProgress == b.mProgress && a.mEta == b.mEta
+                && a.mNextDue == b.mNextDue;
+    }
+
     public static ArrayList<HashMap<String, String>> getIntentInformation(Context context) {
         openDBIfClosed(context);
         Cursor cursor = null;
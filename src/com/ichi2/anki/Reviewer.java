@@ -18,6 +18,7 @@
 package com.ichi2.anki;
 
 import android.app.Dialog;
+import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -35,6 +36,7 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -67,6 +69,7 @@ import android.view.inputmethod.InputMethodManager;
 import android.webkit.JsResult;
 import android.webkit.WebChromeClient;
 import android.webkit.WebView;
+import android.webkit.WebViewClient;
 import android.widget.Button;
 import android.widget.Chronometer;
 import android.widget.EditText;
@@ -83,6 +86,7 @@ import com.ichi2.anki2.R;
 import com.ichi2.async.DeckTask;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.LaTeX;
 import com.ichi2.libanki.Models;
 import com.ichi2.libanki.Sched;
 import com.ichi2.libanki.Sound;
@@ -91,6 +95,7 @@ import com.ichi2.themes.StyledDialog;
 import com.ichi2.themes.StyledProgressDialog;
 import com.ichi2.themes.Themes;
 import com.ichi2.utils.DiffEngine;
+import com.ichi2.utils.HtmlFilterChain;
 import com.ichi2.utils.RubyParser;
 import com.ichi2.widget.WidgetStatus;
 import com.tomgibara.android.veecheck.util.PrefSettings;
@@ -108,6 +113,7 @@ import java.lang.reflect.Method;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -142,6 +148,9 @@ public class Reviewer extends AnkiActivity {
 
     private static final int TOTAL_WIDTH_PADDING = 10;
 
+    /** Seconds the typed answer comparison may take before it settles for a coarser diff */
+    private static final float TYPE_ANSWER_DIFF_TIMEOUT = 0.2f;
+
     /**
      * Menus
      */
@@ -258,6 +267,15 @@ public class Reviewer extends AnkiActivity {
     private int mTypeSize;
     private String mTypeWarning;
 
+    /** Filters applied to the card html, by card side; built on first use after the preferences were loaded */
+    private HtmlFilterChain[] mHtmlFilters = new HtmlFilterChain[2];
+    private Sound.SoundFilter[] mSoundFilters = new Sound.SoundFilter[2];
+    /** Filters for the question of the card preloaded into the hidden webview, see {@link #preloadNextCard()} */
+    private HtmlFilterChain mPreloadFilters;
+    private Sound.SoundFilter mPreloadSoundFilter;
+    /** The media directory the sound filters were built for */
+    private String mHtmlFiltersBaseUrl;
+
     private boolean mIsSelecting = false;
     private boolean mTouchStarted = false;
     private boolean mInAnswer = false;
@@ -335,6 +353,14 @@ public class Reviewer extends AnkiActivity {
     private long mSavedTimer = 0;
 
     private boolean mRefreshWebview = false;
+    /** Load cards into the hidden mNextCard and swap both webviews when loading has finished */
+    private boolean mPrefDoubleBuffer = false;
+    private boolean mBufferPending = false;
+    /** Card expected after the current one, its question is preloaded into mNextCard while the answer is shown */
+    private Card mUpcomingCard;
+    /** Page loaded into mNextCard ahead of time, or null */
+    private String mPreloadedPage;
+    private boolean mPreloadFinished = false;
     private String[] mCustomFontFiles;
     private String mCustomDefaultFontCss;
     private String mCustomFontStyle;
@@ -622,6 +648,23 @@ public class Reviewer extends AnkiActivity {
         }
     };
 
+    /** The latex prescan only fills a cache, there is nothing to show */
+    private DeckTask.TaskListener mPrescanLaTeXHandler = new DeckTask.TaskListener() {
+        @Override
+        public void onPreExecute() {
+        }
+
+
+        @Override
+        public void onPostExecute(DeckTask.TaskData result) {
+        }
+
+
+        @Override
+        public void onProgressUpdate(DeckTask.TaskData... values) {
+        }
+    };
+
     private DeckTask.TaskListener mUpdateCardHandler = new DeckTask.TaskListener() {
         private boolean mNoMoreCards;
 
@@ -641,6 +684,7 @@ public class Reviewer extends AnkiActivity {
         @Override
         public void onProgressUpdate(DeckTask.TaskData... values) {
             mCurrentCard = values[0].getCard();
+            mUpcomingCard = values[0].getUpcomingCard();
             if (mCurrentCard == null) {
                 // If the card is null means that there are no more cards scheduled for review.
                 mNoMoreCards = true;
@@ -759,6 +803,7 @@ public class Reviewer extends AnkiActivity {
             // session limits not reached, show next card
 
             mCurrentCard = values[0].getCard();
+            mUpcomingCard = values[0].getUpcomingCard();
             if (mCurrentCard == null) {
                 // If the card is null means that there are no more cards scheduled for review.
                 mNoMoreCards = true;
@@ -864,25 +909,27 @@ public class Reviewer extends AnkiActivity {
 
     /**
      * Format question field when it contains typeAnswer or clozes.
-     * If there was an error during type text extraction, a warning is displayed
+     * If there was an error during type text extraction, a warning is displayed.
+     * Only used by the simple interface, the webview gets this from {@link TypeAnswerFilter}.
      * @param buf The question text
      * @return The formatted question text
      */
     private String typeAnsQuestionFilter(String buf) {
         Matcher m = sTypeAnsPat.matcher(buf);
         if (mTypeWarning != null) {
-            return m.replaceFirst(mTypeWarning);
+            return m.replaceAll(Matcher.quoteReplacement(mTypeWarning));
         }
-        return m.replaceFirst("");
+        return m.replaceAll("");
     }
     /**
      * Format answer field when it contains typeAnswer or clozes
+     * Only used by the simple interface, the webview gets this from {@link TypeAnswerFilter}.
      * @param buf The answer text
      * @return The formatted answer text
      */
     private String typeAnsAnswerFilter(String buf) {
         Matcher m = sTypeAnsPat.matcher(buf);
-        return m.replaceFirst("");
+        return m.replaceAll("");
     }
 
     private String contentForCloze(String txt, int idx) {
@@ -975,6 +1022,10 @@ public class Reviewer extends AnkiActivity {
 
             mBaseUrl = Utils.getBaseUrl(col.getMedia().getDir());
             restorePreferences();
+            // warm the latex image links of the cards to come
+            DeckTask.cancelTask(DeckTask.TASK_TYPE_PRESCAN_LATEX);
+            DeckTask.launchDeckTask(DeckTask.TASK_TYPE_PRESCAN_LATEX, mPrescanLaTeXHandler,
+                    new DeckTask.TaskData(col, mSched._deckLimit()));
 
             try {
                 String[] title = mSched.getCol().getDecks().current().getString("name").split("::");
@@ -1748,6 +1799,7 @@ public class Reviewer extends AnkiActivity {
         mTimerHandler.removeCallbacks(removeChosenAnswerText);
         mTimerHandler.postDelayed(removeChosenAnswerText, mShowChosenAnswerLength);
         Sound.stopSounds();
+        Sound.evictSounds(mCurrentCard.getId());
         mCurrentEase = ease;
 
         // Increment number reps counter
@@ -1816,6 +1868,11 @@ public class Reviewer extends AnkiActivity {
             mCardFrame.addView(mNextCard, 0);
 
             mCustomFontStyle = getCustomFontsStyle() + getDefaultFontStyle();
+        } else if (mPrefDoubleBuffer && !mSimpleInterface) {
+            // keep it invisible instead of gone, so that it is laid out and rendered while hidden
+            mNextCard = createWebView();
+            mNextCard.setVisibility(View.INVISIBLE);
+            mCardFrame.addView(mNextCard, 0);
         }
 
         // hunt for input issue 720, like android issue 3341
@@ -1953,6 +2010,9 @@ public class Reviewer extends AnkiActivity {
         }
         webView.getSettings().setJavaScriptEnabled(true);
         webView.setWebChromeClient(new AnkiDroidWebChromeClient());
+        if (mPrefDoubleBuffer && !mRefreshWebview) {
+            webView.setWebViewClient(new DoubleBufferWebViewClient());
+        }
         webView.addJavascriptInterface(new JavaScriptInterface(), "interface");
         if (AnkiDroidApp.isFroyoOrLater()) {
             webView.setFocusableInTouchMode(false);
@@ -2139,6 +2199,9 @@ public class Reviewer extends AnkiActivity {
 
     private SharedPreferences restorePreferences() {
         SharedPreferences preferences = PrefSettings.getSharedPrefs(getBaseContext());
+        mHtmlFilters[0] = null;
+        mHtmlFilters[1] = null;
+        mPreloadFilters = null;
         mPrefTimer = preferences.getBoolean("timer", true);
         mPrefWhiteboard = preferences.getBoolean("whiteboard", false);
         mPrefWriteAnswers = preferences.getBoolean("writeAnswers", false);
@@ -2161,6 +2224,8 @@ public class Reviewer extends AnkiActivity {
         mPrefConvertFen = preferences.getBoolean("convertFenText", false);
         mSpeakText = preferences.getBoolean("tts", false);
         mPlaySoundsAtStart = preferences.getBoolean("playSoundsAtStart", true);
+        // text to speech does not use the players
+        Sound.setAutoplay(mPlaySoundsAtStart && !mSpeakText);
         mShowProgressBars = preferences.getBoolean("progressBars", true);
         mPrefUseTimer = preferences.getBoolean("timeoutAnswer", false);
         mWaitAnswerSecond = preferences.getInt("timeoutAnswerSeconds", 20);
@@ -2208,6 +2273,7 @@ public class Reviewer extends AnkiActivity {
         }
 
         mSimpleInterface = preferences.getBoolean("simpleInterface", false);
+        mPrefDoubleBuffer = preferences.getBoolean("doubleBufferCards", false);
 
         return preferences;
     }
@@ -2336,7 +2402,11 @@ public class Reviewer extends AnkiActivity {
         }
 
         String question = mCurrentCard.getQuestion(mSimpleInterface);
-        if (typeAnswer()) {
+        if (!mSimpleInterface && Sound.isAutoplay(mSched.getCol(), mCurrentCard.getDid())) {
+            // get the players of both sides ready while the question is shown
+            Sound.preloadSounds(mCurrentCard.getId(), mBaseUrl, question + mCurrentCard.getAnswer(false));
+        }
+        if (typeAnswer() && mSimpleInterface) {
             question = typeAnsQuestionFilter(question);
         }
         updateMenuItems();
@@ -2398,7 +2468,7 @@ public class Reviewer extends AnkiActivity {
         setFlipCardAnimation();
 
         String answer = mCurrentCard.getAnswer(mSimpleInterface);
-        if (typeAnswer()) {
+        if (typeAnswer() && mSimpleInterface) {
             answer = typeAnsAnswerFilter(answer);
         }
         
@@ -2438,6 +2508,8 @@ public class Reviewer extends AnkiActivity {
 
                     // Obtain the diff and send it to updateCard
                     DiffEngine diff = new DiffEngine();
+                    // the answer is revealed on the ui thread, rather show a coarse diff than a pause
+                    diff.Diff_Timeout = TYPE_ANSWER_DIFF_TIMEOUT;
 
                     StringBuffer span = new StringBuffer();
                     span.append("<span style=\"font-family: '").append(mTypeFont)
@@ -2500,7 +2572,9 @@ public class Reviewer extends AnkiActivity {
             // isJapaneseModel = myModel.hasTag(japaneseModelTag);
             // mCurrentBackgroundColor = myModel.getBackgroundColor(mCurrentCard.getCardModelId());
         } else {
-            mCard.getSettings().setDefaultFontSize(calculateDynamicFontSize(content));
+            // the card is loaded into the hidden webview when double buffering
+            WebView target = mRefreshWebview || mPrefDoubleBuffer ? mNextCard : mCard;
+            target.getSettings().setDefaultFontSize(calculateDynamicFontSize(content));
         }
 
         // Log.i(AnkiDroidApp.TAG, "Initial content card = \n" + content);
@@ -2508,18 +2582,39 @@ public class Reviewer extends AnkiActivity {
         // Log.i(AnkiDroidApp.TAG, "content after parsing images = \n" +
         // content);
 
-        // don't play question sound again when displaying answer
-        int questionStartsAt = content.indexOf("<a name=\"question\"></a><hr/>");
-        String question = "";
-        String answer = "";
-
         Sound.resetSounds();
 
         int qa = MetaDB.LANGUAGES_QA_QUESTION;
         if (sDisplayAnswer) {
             qa = MetaDB.LANGUAGES_QA_ANSWER;
         }
-        answer = Sound.parseSounds(mBaseUrl, content, mSpeakText, qa);
+        mCardContent = new SpannedString(buildCardPage(content, qa, getHtmlFilters(qa), mSoundFilters[qa],
+                isJapaneseModel));
+        // Log.i(AnkiDroidApp.TAG, "card html = \n" + card);
+        Log.i(AnkiDroidApp.TAG, "base url = " + mBaseUrl);
+
+        fillFlashcard(mShowAnimations);
+
+        if (!mConfigurationChanged && mPlaySoundsAtStart)
+            playSounds();
+    }
+
+
+    /**
+     * Turn the html of a card side into the page shown in the webview: apply the html filters and fill in the card
+     * template.
+     */
+    private String buildCardPage(String content, int qa, HtmlFilterChain filters, Sound.SoundFilter soundFilter,
+            boolean isJapaneseModel) {
+        String question = "";
+        String answer = "";
+
+        // sounds, latex, font weight, hebrew and fen are all handled in one pass over the content
+        soundFilter.clearFound();
+        answer = filters.apply(content);
+        if (mSpeakText && !soundFilter.soundFound()) {
+            answer = Sound.addTtsLink(answer, qa);
+        }
 
         // Parse out the LaTeX images
         // question = LaTeX.parseLaTeX(DeckManager.getMainDeck(), question);
@@ -2533,20 +2628,6 @@ public class Reviewer extends AnkiActivity {
             content = question + answer;
         }
 
-        // In order to display the bold style correctly, we have to change
-        // font-weight to 700
-        content = content.replace("font-weight:600;", "font-weight:700;");
-
-        // Find hebrew text
-        if (isHebrewFixEnabled()) {
-            content = applyFixForHebrew(content);
-        }
-
-        // Chess notation FEN handling
-        if (this.isFenConversionEnabled()) {
-            content = fenToChessboard(content);
-        }
-
         Log.i(AnkiDroidApp.TAG, "content card = \n" + content);
         StringBuilder style = new StringBuilder();
         style.append(mCustomFontStyle);
@@ -2557,15 +2638,7 @@ public class Reviewer extends AnkiActivity {
             content = Models.invertColors(content);
         }
 
-        mCardContent = new SpannedString(mCardTemplate.replace("::content::", content).replace("::style::",
-                style.toString()));
-        // Log.i(AnkiDroidApp.TAG, "card html = \n" + card);
-        Log.i(AnkiDroidApp.TAG, "base url = " + mBaseUrl);
-
-        fillFlashcard(mShowAnimations);
-
-        if (!mConfigurationChanged && mPlaySoundsAtStart)
-            playSounds();
+        return mCardTemplate.replace("::content::", content).replace("::style::", style.toString());
     }
 
 
@@ -2634,6 +2707,23 @@ public class Reviewer extends AnkiActivity {
                 if (!AnkiDroidApp.isFroyoOrLater()) {
                     mCard.setFocusableInTouchMode(true);
                 }
+            } else if (mPrefDoubleBuffer) {
+                String page = mCardContent.toString();
+                if (page.equals(mPreloadedPage)) {
+                    // the card was guessed right, it is already (being) loaded into the hidden webview
+                    mPreloadedPage = null;
+                    if (mPreloadFinished) {
+                        swapCardBuffers();
+                    } else {
+                        mBufferPending = true;
+                    }
+                } else {
+                    mPreloadedPage = null;
+                    // shown by swapCardBuffers() as soon as the hidden webview has finished loading
+                    mBufferPending = true;
+                    mNextCard.setBackgroundColor(mCurrentBackgroundColor);
+                    mNextCard.loadDataWithBaseURL(mBaseUrl, page, "text/html", "utf-8", null);
+                }
             } else {
                 mCard.loadDataWithBaseURL(mBaseUrl, mCardContent.toString(), "text/html", "utf-8", null);
                 mCard.setBackgroundColor(mCurrentBackgroundColor);
@@ -3150,81 +3240,120 @@ public class Reviewer extends AnkiActivity {
     // return deck.mediaDir();
     // }
 
-    private String applyFixForHebrew(String text) {
-        Matcher m = sHebrewPattern.matcher(text);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String hebrewText = m.group();
-            // Some processing before we reverse the Hebrew text
-            // 1. Remove all Hebrew vowels as they cannot be displayed properly
-            Matcher mv = sHebrewVowelsPattern.matcher(hebrewText);
-            hebrewText = mv.replaceAll("");
-            // 2. Flip open parentheses, brackets and curly brackets with closed
-            // ones and vice-versa
-            // Matcher mp = sBracketsPattern.matcher(hebrewText);
-            // StringBuffer sbg = new StringBuffer();
-            // int bracket[] = new int[1];
-            // while (mp.find()) {
-            // bracket[0] = mp.group().codePointAt(0);
-            // if ((bracket[0] & 0x28) == 0x28) {
-            // // flip open/close ( and )
-            // bracket[0] ^= 0x01;
-            // } else if (bracket[0] == 0x5B || bracket[0] == 0x5D || bracket[0]
-            // == 0x7B || bracket[0] == 0x7D) {
-            // // flip open/close [, ], { and }
-            // bracket[0] ^= 0x06;
-            // }
-            // mp.appendReplacement(sbg, new String(bracket, 0, 1));
-            // }
-            // mp.appendTail(sbg);
-            // hebrewText = sbg.toString();
-            // for (int i = 0; i < hebrewText.length(); i++) {
-            // Log.i(AnkiDroidApp.TAG, "flipped brackets: " +
-            // hebrewText.codePointAt(i));
-            // }
-            // 3. Reverse all numerical groups (so when they get reversed again
-            // they show LTR)
-            // Matcher mn = sNumeralsPattern.matcher(hebrewText);
-            // sbg = new StringBuffer();
-            // while (mn.find()) {
-            // StringBuffer sbn = new StringBuffer(m.group());
-            // mn.appendReplacement(sbg, sbn.reverse().toString());
-            // }
-            // mn.appendTail(sbg);
+    /**
+     * Return the filters for the html of the given card side, building them if needed.
+     */
+    private HtmlFilterChain getHtmlFilters(int qa) {
+        if (mHtmlFiltersBaseUrl == null || !mHtmlFiltersBaseUrl.equals(mBaseUrl)) {
+            mHtmlFilters[0] = null;
+            mHtmlFilters[1] = null;
+            mPreloadFilters = null;
+            mHtmlFiltersBaseUrl = mBaseUrl;
+        }
+        if (mHtmlFilters[qa] == null) {
+            mSoundFilters[qa] = new Sound.SoundFilter(mBaseUrl, qa);
+            mHtmlFilters[qa] = newHtmlFilters(qa, mSoundFilters[qa]);
+        }
+        return mHtmlFilters[qa];
+    }
 
-            // for (int i = 0; i < sbg.length(); i++) {
-            // Log.i(AnkiDroidApp.TAG, "LTR numerals: " + sbg.codePointAt(i));
-            // }
-            // hebrewText = sbg.toString();//reverse().toString();
-            m.appendReplacement(sb, hebrewText);
+
+    /**
+     * Return the filters for the question of a card which is not shown yet. Its sounds are not stored for playing.
+     */
+    private HtmlFilterChain getPreloadFilters() {
+        getHtmlFilters(MetaDB.LANGUAGES_QA_QUESTION);
+        if (mPreloadFilters == null) {
+            mPreloadSoundFilter = new Sound.SoundFilter(mBaseUrl, MetaDB.LANGUAGES_QA_QUESTION, false);
+            mPreloadFilters = newHtmlFilters(MetaDB.LANGUAGES_QA_QUESTION, mPreloadSoundFilter);
         }
-        m.appendTail(sb);
-        return sb.toString();
+        return mPreloadFilters;
     }
 
 
-    private String fenToChessboard(String text) {
-        Matcher mf = sFenPattern.matcher(text);
-        StringBuffer sb = new StringBuffer();
-        while (mf.find()) {
-            if (mf.group(1).length() == 0) {
-                mf.appendReplacement(sb, "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                        + "',false));</script>");
-            } else {
-                Matcher mo = sFenOrientationPattern.matcher(mf.group(1));
+    /**
+     * Arabic reshaping and the recalculation of hard coded font sizes are not part of the chain: they are no match and
+     * replace steps, the reshaper joins letters across whole words and the font sizes depend on the nesting of spans.
+     */
+    private HtmlFilterChain newHtmlFilters(int qa, Sound.SoundFilter soundFilter) {
+        return new HtmlFilterChain(
+                new TypeAnswerFilter(qa),
+                soundFilter,
+                LaTeX.FILTERS[0], LaTeX.FILTERS[1], LaTeX.FILTERS[2],
+                // In order to display the bold style correctly, we have to change font-weight to 700
+                new HtmlFilterChain.Replace("font-weight:600;", "font-weight:700;"),
+                // Find hebrew text
+                isHebrewFixEnabled() ? new HebrewFilter() : null,
+                // Chess notation FEN handling
+                isFenConversionEnabled() ? new FenFilter() : null);
+    }
+
+
+    /**
+     * Replaces the type answer markers with the warning about them on the question, and removes them on the answer.
+     * The markers are left alone when typing the answer is off. Like Anki, every marker is replaced.
+     */
+    private class TypeAnswerFilter implements HtmlFilterChain.Filter {
+        private final int mQa;
+
+
+        public TypeAnswerFilter(int qa) {
+            mQa = qa;
+        }
+
+
+        @Override
+        public String pattern() {
+            return sTypeAnsPat.pattern();
+        }
+
+
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            if (!typeAnswer()) {
+                out.append(m.group(group));
+            } else if (mQa == MetaDB.LANGUAGES_QA_QUESTION && mTypeWarning != null) {
+                out.append(mTypeWarning);
+            }
+        }
+    }
+
+
+    private static class HebrewFilter implements HtmlFilterChain.Filter {
+        @Override
+        public String pattern() {
+            return sHebrewPattern.pattern();
+        }
+
+
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            // Remove all Hebrew vowels as they cannot be displayed properly
+            Matcher mv = sHebrewVowelsPattern.matcher(m.group(group));
+            out.append(mv.replaceAll(""));
+        }
+    }
+
+
+    private static class FenFilter implements HtmlFilterChain.Filter {
+        @Override
+        public String pattern() {
+            return sFenPattern.pattern();
+        }
+
+
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            String orientation = "false";
+            if (m.group(group + 1).length() != 0) {
+                Matcher mo = sFenOrientationPattern.matcher(m.group(group + 1));
                 if (mo.find() && mo.group(1).equalsIgnoreCase("black")) {
-                    mf.appendReplacement(sb,
-                            "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                                    + "',1));</script>");
-                } else {
-                    mf.appendReplacement(sb,
-                            "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                                    + "',false));</script>");
+                    orientation = "1";
                 }
             }
+            out.append("<script type=\"text/javascript\">document.write(renderFen('").append(m.group(group + 2))
+                    .append("',").append(orientation).append("));</script>");
         }
-        mf.appendTail(sb);
-        return sb.toString();
     }
 
 
@@ -3345,6 +3474,85 @@ public class Reviewer extends AnkiActivity {
         }
     }
 
+    /**
+     * Shows the hidden webview once the card loaded into it has finished loading. Both webviews are kept and reused
+     * for the whole session.
+     */
+    public final class DoubleBufferWebViewClient extends WebViewClient {
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            if (view == mNextCard) {
+                if (mBufferPending) {
+                    swapCardBuffers();
+                } else if (mPreloadedPage != null) {
+                    mPreloadFinished = true;
+                }
+            }
+        }
+
+
+        /** Opens links in the browser, as a webview without a client does. */
+        @Override
+        public boolean shouldOverrideUrlLoading(WebView view, String url) {
+            try {
+                startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
+            } catch (ActivityNotFoundException e) {
+                Log.w(AnkiDroidApp.TAG, "No activity found to open " + url);
+            }
+            return true;
+        }
+    }
+
+
+    private void swapCardBuffers() {
+        mBufferPending = false;
+        WebView shown = mNextCard;
+        mNextCard = mCard;
+        mCard = shown;
+        mCard.setVisibility(View.VISIBLE);
+        mNextCard.setVisibility(View.INVISIBLE);
+        // hunt for input issue 720, like android issue 3341
+        if (!AnkiDroidApp.isFroyoOrLater()) {
+            mCard.setFocusableInTouchMode(true);
+        }
+        if (sDisplayAnswer) {
+            preloadNextCard();
+        }
+    }
+
+
+    /**
+     * Load the question of the card expected next into the hidden webview while the answer is shown. It is only used
+     * if the card really comes next and its page turns out the same, see {@link #fillFlashcard(boolean)}. Cards which
+     * have not been rendered by the {@link com.ichi2.libanki.RenderCache} yet and cards with a type answer field are skipped.
+     */
+    private void preloadNextCard() {
+        Card card = mUpcomingCard;
+        mUpcomingCard = null;
+        mPreloadedPage = null;
+        if (card == null || mCurrentCard == null || card.getId() == mCurrentCard.getId() || mRefreshWebview
+                || mSimpleInterface || mSched == null) {
+            return;
+        }
+        HashMap<String, String> qa = mSched.getCol().getRenderCache()
+                .get(card.getId(), card.getODid() != 0 ? card.getODid() : card.getDid());
+        if (qa == null || sTypeAnsPat.matcher(qa.get("q")).find()) {
+            return;
+        }
+        String question = card.css() + qa.get("q");
+        if (mPrefFixArabic) {
+            question = ArabicUtilities.reshapeSentence(question, true);
+        }
+        String content = recalculateHardCodedFontSize(enrichWithQADiv(question, false), mDisplayFontSize);
+        mPreloadedPage = buildCardPage(content, MetaDB.LANGUAGES_QA_QUESTION, getPreloadFilters(),
+                mPreloadSoundFilter, false);
+        mPreloadFinished = false;
+        mNextCard.getSettings().setDefaultFontSize(calculateDynamicFontSize(content));
+        mNextCard.setBackgroundColor(mCurrentBackgroundColor);
+        mNextCard.loadDataWithBaseURL(mBaseUrl, mPreloadedPage, "text/html", "utf-8", null);
+    }
+
+
     public final class JavaScriptInterface {
 
         JavaScriptInterface() {
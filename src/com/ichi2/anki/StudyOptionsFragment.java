@@ -63,8 +63,8 @@ import java.util.HashMap;
 import org.achartengine.ChartFactory;
 import org.achartengine.GraphicalView;
 import org.achartengine.chart.BarChart;
+import org.achartengine.model.ArrayXYSeries;
 import org.achartengine.model.XYMultipleSeriesDataset;
-import org.achartengine.model.XYSeries;
 import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 import org.json.JSONException;
@@ -740,11 +740,7 @@ public class StudyOptionsFragment extends Fragment {
             renderer.addSeriesRenderer(r);
 
 			for (int i = 1; i < serieslist.length; i++) {
-				XYSeries series = new XYSeries("");
-	        	for (int j = 0; j < serieslist[i].length; j++) {
-	        		series.add(serieslist[0][j], serieslist[i][j]);
-	        	}
-	        	dataset.addSeries(series);				
+	        	dataset.addSeries(new ArrayXYSeries("", serieslist[0], serieslist[i]));
 			}
 			renderer.setBarSpacing(0.4);
 			renderer.setShowLegend(false);
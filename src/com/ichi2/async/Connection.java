@@ -352,7 +352,7 @@ public class Connection extends AsyncTask<Connection.Payload, Object, Connection
         		}
         	}
     		data.result = decks;
-    		data.data = new Object[]{conflictResolution, col, col.getSched().eta(counts), col.cardCount()};
+    		data.data = new Object[]{conflictResolution, col, col.getSched().eta(counts, true), col.cardCount()};
         	return data;
     	}
     }
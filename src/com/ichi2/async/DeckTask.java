@@ -37,9 +37,15 @@ import com.ichi2.anki.AnkiDatabaseManager;
 import com.ichi2.anki.AnkiDb;
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.BackupManager;
+import com.ichi2.anki.DatabaseMaintenance;
+import com.ichi2.anki.UIUtils;
 import com.ichi2.anki2.R;
+import com.ichi2.compat.Compat;
+import com.ichi2.compat.CompatV11;
+import com.ichi2.compat.CompatV3;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.LaTeX;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Sched;
 import com.ichi2.libanki.Stats;
@@ -53,6 +59,7 @@ import android.content.res.Resources;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -83,80 +90,209 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     public static final int TASK_TYPE_RESTORE_IF_MISSING = 24;
     public static final int TASK_TYPE_DELETE_DECK = 25;
     public static final int TASK_TYPE_REBUILD_CRAM = 26;
+    public static final int TASK_TYPE_PRESCAN_LATEX = 27;
 
-    private static DeckTask sInstance;
-    private static DeckTask sOldInstance;
+    /** Number of upcoming cards rendered in the background after answering */
+    private static final int PREFETCH_CARDS = 3;
+
+    /** Lane of tasks answering to the user, like answering cards or saving notes. They run one after the other. */
+    private static final int LANE_INTERACTIVE = 0;
+    /** Lane of long read-only tasks, like statistics and the browser list. They do not hold up interactive tasks. */
+    private static final int LANE_BACKGROUND = 1;
+    /** Tasks which open, close or rewrite the collection wait for both lanes and are waited for by both */
+    private static final int LANE_EXCLUSIVE = 2;
+
+    /** The most recently launched task of each type, for {@link #cancelTask(int)} */
+    private static final HashMap<Integer, DeckTask> sLastOfType = new HashMap<Integer, DeckTask>();
+    /** The most recently launched task of each lane; a new task waits for the last one of its lane */
+    private static final DeckTask[] sLastInLane = new DeckTask[2];
+    /** The task run by the current thread, so that long operations can check whether their own task was cancelled */
+    private static final ThreadLocal<DeckTask> sCurrent = new ThreadLocal<DeckTask>();
+
+    private static final Compat sCompat = UIUtils.getApiLevel() >= 11 ? new CompatV11() : new CompatV3();
 
     private int mType;
     private TaskListener mListener;
-    
-    public static DeckTask launchDeckTask(int type, TaskListener listener, TaskData... params) {
-        sOldInstance = sInstance;
+    /** Listeners of the queued tasks this one replaced, which are told about its progress and result as well */
+    private ArrayList<TaskListener> mInheritedListeners;
+    /** Tasks which have to finish before this one may start */
+    private DeckTask[] mPredecessors;
+    /** Set once the task got past waiting for its predecessors */
+    private boolean mStarted = false;
+
+    public static synchronized DeckTask launchDeckTask(int type, TaskListener listener, TaskData... params) {
+        DeckTask task = new DeckTask();
+        task.mListener = listener;
+        task.mType = type;
+
+        int lane = laneOf(type);
+        if (lane == LANE_EXCLUSIVE) {
+            task.mPredecessors = new DeckTask[] { sLastInLane[LANE_INTERACTIVE], sLastInLane[LANE_BACKGROUND] };
+            sLastInLane[LANE_INTERACTIVE] = task;
+            sLastInLane[LANE_BACKGROUND] = task;
+        } else {
+            DeckTask last = sLastInLane[lane];
+            if (last != null && last.mType == type && isCoalesced(type) && !last.mStarted) {
+                // the queued task would compute the same result as this one, drop it and take its place
+                Log.i(AnkiDroidApp.TAG, "DeckTask: replacing queued task " + type);
+                last.cancel(false);
+                task.mPredecessors = last.mPredecessors;
+                // their onPreExecute has been called already, so they wait for a result
+                task.mInheritedListeners = last.mInheritedListeners != null ? last.mInheritedListeners
+                        : new ArrayList<TaskListener>();
+                task.mInheritedListeners.add(last.mListener);
+            } else {
+                task.mPredecessors = new DeckTask[] { last };
+            }
+            sLastInLane[lane] = task;
+        }
+        sLastOfType.put(type, task);
+
+        // tasks of different lanes have to run in parallel
+        sCompat.executeOnThreadPool(task, params);
+        return task;
+    }
+
+
+    private static int laneOf(int type) {
+        switch (type) {
+            case TASK_TYPE_LOAD_STATISTICS:
+            case TASK_TYPE_LOAD_CARDS:
+            case TASK_TYPE_UPDATE_CARD_BROWSER_LIST:
+            case TASK_TYPE_DELETE_BACKUPS:
+            case TASK_TYPE_PRESCAN_LATEX:
+                return LANE_BACKGROUND;
+
+            case TASK_TYPE_OPEN_COLLECTION:
+            case TASK_TYPE_OPEN_COLLECTION_AND_UPDATE_CARDS:
+            case TASK_TYPE_CLOSE_DECK:
+            case TASK_TYPE_CHECK_DATABASE:
+            case TASK_TYPE_REPAIR_DECK:
+            case TASK_TYPE_RESTORE_DECK:
+            case TASK_TYPE_RESTORE_IF_MISSING:
+            case TASK_TYPE_LOAD_TUTORIAL:
+                return LANE_EXCLUSIVE;
+
+            default:
+                return LANE_INTERACTIVE;
+        }
+    }
 
-        sInstance = new DeckTask();
-        sInstance.mListener = listener;
-        sInstance.mType = type;
 
-        sInstance.execute(params);
-        return sInstance;
+    /** Tasks which only refresh what is displayed; when several are queued only the last one needs to run */
+    private static boolean isCoalesced(int type) {
+        return type == TASK_TYPE_LOAD_DECK_COUNTS;
+    }
+
+
+    private static boolean isUnfinished(DeckTask task) {
+        return task != null && task.getStatus() != AsyncTask.Status.FINISHED;
     }
 
 
     /**
-     * Block the current thread until the currently running DeckTask instance (if any) has finished.
+     * Block the current thread until all launched DeckTask instances (if any) have finished.
      */
     public static void waitToFinish() {
-        try {
-            if ((sInstance != null) && (sInstance.getStatus() != AsyncTask.Status.FINISHED)) {
-            	Log.i(AnkiDroidApp.TAG, "DeckTask: wait to finish");
-                sInstance.get();
+        DeckTask[] tasks;
+        synchronized (DeckTask.class) {
+            tasks = sLastInLane.clone();
+        }
+        for (DeckTask task : tasks) {
+            try {
+                if (isUnfinished(task) && task != sCurrent.get()) {
+                    Log.i(AnkiDroidApp.TAG, "DeckTask: wait to finish");
+                    task.get();
+                }
+            } catch (Exception e) {
+                // cancelled or failed, either way it is done
             }
-        } catch (Exception e) {
-            return;
         }
     }
 
 
-    public static void cancelTask() {
+    /** Cancel the most recently launched task of the given type, if it did not finish yet */
+    public static void cancelTask(int type) {
+        DeckTask task;
+        synchronized (DeckTask.class) {
+            task = sLastOfType.get(type);
+        }
         try {
-            if ((sInstance != null) && (sInstance.getStatus() != AsyncTask.Status.FINISHED)) {
-                sInstance.cancel(true);
+            if (isUnfinished(task)) {
+                task.cancel(true);
             }
         } catch (Exception e) {
             return;
         }
     }
 
+    /** Lets long running collection operations report progress to the listener */
+    public void doProgress(TaskData value) {
+        publishProgress(value);
+    }
+
+
+    /** Whether the task run by the calling thread has been cancelled */
     public static boolean taskIsCancelled() {
-    	return sInstance.isCancelled();
+        DeckTask current = sCurrent.get();
+        return current != null && current.isCancelled();
     }
 
 
     public static boolean taskIsRunning() {
         try {
-            if ((sInstance != null) && (sInstance.getStatus() != AsyncTask.Status.FINISHED)) {
-                return true;
+            synchronized (DeckTask.class) {
+                return isUnfinished(sLastInLane[LANE_INTERACTIVE]) || isUnfinished(sLastInLane[LANE_BACKGROUND]);
             }
         } catch (Exception e) {
             return true;
         }
-        return false;
     }
 
 
     @Override
     protected TaskData doInBackground(TaskData... params) {
-        // Wait for previous thread (if any) to finish before continuing
+        // Wait for previous tasks of the lane (if any) to finish before continuing
+        for (DeckTask predecessor : mPredecessors) {
+            try {
+                if (isUnfinished(predecessor)) {
+                    Log.i(AnkiDroidApp.TAG, "Waiting for " + predecessor.mType + " to finish before starting " + mType);
+                    predecessor.get();
+                }
+            } catch (Exception e) {
+                Log.e(AnkiDroidApp.TAG,
+                        "doInBackground - Got exception while waiting for thread to finish: " + e.getMessage());
+            }
+        }
+        synchronized (DeckTask.class) {
+            // checked together with mPredecessors when coalescing
+            mStarted = true;
+            mPredecessors = null;
+        }
+        if (isCancelled()) {
+            return null;
+        }
+
+        // work the user waits for runs ahead of statistics and other bulk reads
+        boolean background = laneOf(mType) == LANE_BACKGROUND;
+        Process.setThreadPriority(background ? Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_DEFAULT);
+        sCurrent.set(this);
         try {
-            if ((sOldInstance != null) && (sOldInstance.getStatus() != AsyncTask.Status.FINISHED)) {
-            	Log.i(AnkiDroidApp.TAG, "Waiting for " + sOldInstance.mType + " to finish before starting " + sInstance.mType);
-                sOldInstance.get();
+            if (background) {
+                return doTask(params);
             }
-        } catch (Exception e) {
-            Log.e(AnkiDroidApp.TAG,
-                    "doInBackground - Got exception while waiting for thread to finish: " + e.getMessage());
+            // other threads working on the collection, like the render cache, wait until the task is done
+            synchronized (Collection.getLock()) {
+                return doTask(params);
+            }
+        } finally {
+            sCurrent.set(null);
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
+    }
+
 
+    private TaskData doTask(TaskData... params) {
         switch (mType) {
             case TASK_TYPE_OPEN_COLLECTION:
                 return doInBackgroundOpenCollection(params);
@@ -232,6 +368,10 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             case TASK_TYPE_REBUILD_CRAM:
             	return doInBackgroundRebuildCram(params);
 
+            case TASK_TYPE_PRESCAN_LATEX:
+                LaTeX.prescan(params[0].getCollection(), params[0].getString());
+                return null;
+
             default:
                 return null;
         }
@@ -246,12 +386,22 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
     @Override
     protected void onProgressUpdate(TaskData... values) {
+        if (mInheritedListeners != null) {
+            for (TaskListener listener : mInheritedListeners) {
+                listener.onProgressUpdate(values);
+            }
+        }
         mListener.onProgressUpdate(values);
     }
 
 
     @Override
     protected void onPostExecute(TaskData result) {
+        if (mInheritedListeners != null) {
+            for (TaskListener listener : mInheritedListeners) {
+                listener.onPostExecute(result);
+            }
+        }
         mListener.onPostExecute(result);
     }
 
@@ -327,6 +477,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         Card oldCard = params[0].getCard();
     	int ease = params[0].getInt();
         Card newCard = null;
+        ArrayList<Long> upcoming;
         int oldCardLeech = 0;
         // 0: normal; 1: leech; 2: leech & suspended
         try {
@@ -347,14 +498,19 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 		            newCard = sched.getCard();
 	            }
 	            if (newCard != null) {
-		            // render cards before locking database
-	            	newCard._getQA(true);
+		            // render cards before locking database, unless this has already been done in the background
+	            	newCard._getQA(false);
 	            }
-                publishProgress(new TaskData(newCard, oldCardLeech));
+	            upcoming = sched.peekCardIds(PREFETCH_CARDS);
+	            // the reviewer preloads the question of the card expected next into its hidden webview
+	            Card upcomingCard = upcoming.isEmpty() ? null : sched.getCol().getCard(upcoming.get(0));
+                publishProgress(new TaskData(newCard, oldCardLeech, upcomingCard));
 	            ankiDB.getDatabase().setTransactionSuccessful();
 	        } finally {
 	            ankiDB.getDatabase().endTransaction();
 	        }
+	        // render the following cards while the user looks at this one
+	        sched.getCol().getRenderCache().prefetch(upcoming);
 		} catch (RuntimeException e) {
 			Log.e(AnkiDroidApp.TAG, "doInBackgroundAnswerCard - RuntimeException on answering card: " + e);
 			AnkiDroidApp.saveExceptionReportFile(e, "doInBackgroundAnswerCard");
@@ -379,6 +535,8 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 //        DeckManager.waitForDeckClosingThread(deckFilename);
 
         if (oldCol == null || !oldCol.getPath().equals(collectionFile)) {
+        	// a backup of the previously closed collection may still be reading the file
+        	BackupManager.waitForBackup();
 
         	// do a safety backup if last backup is too old --> addresses android's delete db bug 
             if (BackupManager.safetyBackupNeeded(collectionFile)) {
@@ -591,10 +749,13 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     private TaskData doInBackgroundCheckDatabase(TaskData... params) {
         Log.i(AnkiDroidApp.TAG, "doInBackgroundCheckDatabase");
     	Collection col = params[0].getCollection();
-    	long result = col.fixIntegrity();
+    	long result = col.fixIntegrity(this);
     	if (result == -1) {
         	return new TaskData(false);    		
     	} else {
+        	// the check vacuums and analyzes, so a check asked for by DatabaseMaintenance is done
+        	PrefSettings.getSharedPrefs(AnkiDroidApp.getInstance().getBaseContext()).edit()
+        			.putBoolean(DatabaseMaintenance.PREF_CHECK_NEEDED, false).commit();
         	return new TaskData(0, result, true);
     	}
     }
@@ -615,11 +776,14 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     	Log.i(AnkiDroidApp.TAG, "doInBackgroundCloseCollection");
     	Collection col = params[0].getCollection();
     	if (col != null) {
-    		WidgetStatus.waitToFinish();
     		try {
             	String path = col.getPath();
+            	// keep the due counts for widgets, so they need not open the collection again until a card is due
+            	WidgetStatus.storeSummary(AnkiDroidApp.getInstance().getBaseContext(), col);
+            	// the user is done for now, use the time for pending database maintenance
+            	DatabaseMaintenance.runSlice(col);
         		col.close(true);
-        		BackupManager.performBackup(path);
+        		BackupManager.performBackupInBackground(path);
     		} catch (RuntimeException e) {
     			Log.i(AnkiDroidApp.TAG, "doInBackgroundCloseCollection: error occurred - collection not properly closed");
     		}
@@ -656,6 +820,8 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
     private TaskData doInBackgroundDeleteBackups() {
         Log.i(AnkiDroidApp.TAG, "doInBackgroundDeleteBackups");
+        // the backup thread compacts the backup store, which must not lose files under its feet
+        BackupManager.waitForBackup();
     	return null;//ew TaskData(BackupManager.deleteAllBackups());
     }
 
@@ -758,6 +924,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 			String[] sampleQuestions = res.getStringArray(R.array.tutorial_capitals_questions);
 			String[] sampleAnswers = res.getStringArray(R.array.tutorial_capitals_answers);
         	int len = Math.min(questions.length, answers.length);
+        	ArrayList<Note> notes = new ArrayList<Note>();
         	for (int i = 0; i < len + Math.min(sampleQuestions.length, sampleAnswers.length); i++) {
         		Note note = col.newNote(model);
         		if (note.values().length < 2) {
@@ -765,8 +932,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         		}
         		note.values()[0] = (i < len) ? questions[i] : sampleQuestions[i - len];
         		note.values()[1] = (i < len) ? answers[i] : sampleAnswers[i - len];
-        		col.addNote(note);
+        		notes.add(note);
         	}
+        	col.addNotes(notes);
 //        	deck.setSessionTimeLimit(0);
         	if (col.getSched().cardCount("(" + did + ")") == 0) {
         		// error, delete deck
@@ -800,6 +968,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
     public static class TaskData {
         private Card mCard;
+        private Card mUpcomingCard;
         private Note mNote;
         private int mInteger;
         private String mMsg;
@@ -844,6 +1013,12 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         }
 
 
+        public TaskData(Card card, int integer, Card upcomingCard) {
+            this(card, integer);
+            mUpcomingCard = upcomingCard;
+        }
+
+
         public TaskData(Context context, int type, int period) {
             mContext = context;
             mType = type;
@@ -989,6 +1164,11 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         }
 
 
+        public Card getUpcomingCard() {
+            return mUpcomingCard;
+        }
+
+
         public Note getNote() {
             return mNote;
         }
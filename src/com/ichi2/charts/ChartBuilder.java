@@ -20,8 +20,8 @@ package com.ichi2.charts;
 import org.achartengine.ChartFactory;
 import org.achartengine.GraphicalView;
 import org.achartengine.chart.BarChart;
+import org.achartengine.model.ArrayXYSeries;
 import org.achartengine.model.XYMultipleSeriesDataset;
-import org.achartengine.model.XYSeries;
 import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 
@@ -235,11 +235,7 @@ public class ChartBuilder extends Activity {
                 mTitle.setVisibility(View.GONE);
             }
             for (int i = 1; i < mSeriesList.length; i++) {
-            	XYSeries series = new XYSeries(res.getString(valueLabels[i - 1]));
-            	for (int j = 0; j < mSeriesList[i].length; j++) {
-            		series.add(mSeriesList[0][j], mSeriesList[i][j]);
-            	}
-            	mDataset.addSeries(series);
+            	mDataset.addSeries(new ArrayXYSeries(res.getString(valueLabels[i - 1]), mSeriesList[0], mSeriesList[i]));
                 XYSeriesRenderer renderer = new XYSeriesRenderer();
                 renderer.setColor(res.getColor(barColors[i - 1]));
                 mRenderer.addSeriesRenderer(renderer);
@@ -17,6 +17,7 @@
 package com.ichi2.compat;
 
 import android.app.Activity;
+import android.os.AsyncTask;
 
 /**
  * This interface defines a set of functions that are not available on all platforms.
@@ -28,4 +29,5 @@ import android.app.Activity;
  */
 public interface Compat {
     public void invalidateOptionsMenu(Activity activity);
+    public <Params> void executeOnThreadPool(AsyncTask<Params, ?, ?> task, Params... params);
 }
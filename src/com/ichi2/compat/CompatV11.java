@@ -17,6 +17,7 @@
 package com.ichi2.compat;
 
 import android.app.Activity;
+import android.os.AsyncTask;
 
 /**
  * Implementation of {@link Compat} for Honeycomb and later.
@@ -26,4 +27,9 @@ public class CompatV11 implements Compat {
     public void invalidateOptionsMenu(Activity activity) {
         activity.invalidateOptionsMenu();
     }
+
+    @Override
+    public <Params> void executeOnThreadPool(AsyncTask<Params, ?, ?> task, Params... params) {
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params);
+    }
 }
@@ -17,6 +17,7 @@
 package com.ichi2.compat;
 
 import android.app.Activity;
+import android.os.AsyncTask;
 
 /**
  * Implementation of {@link Compat} for Cupcake and later.
@@ -26,4 +27,10 @@ public class CompatV3 implements Compat {
     public void invalidateOptionsMenu(Activity activity) {
         // There is no way (or need) to invalidate the options menu before Honeycomb.
     }
+
+    @Override
+    public <Params> void executeOnThreadPool(AsyncTask<Params, ?, ?> task, Params... params) {
+        // Before Honeycomb, AsyncTasks are always run on a thread pool.
+        task.execute(params);
+    }
 }
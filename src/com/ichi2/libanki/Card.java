@@ -117,6 +117,34 @@ public class Card implements Cloneable {
 		}
 	}
 
+	/**
+	 * Create a card from a snapshot without reading it from the database. Used by undo.
+	 */
+	public Card(Collection col, Snapshot snapshot) {
+		mCol = col;
+		mTimerStarted = Double.NaN;
+		mQA = null;
+		mNote = null;
+		mId = snapshot.mId;
+		mNid = snapshot.mNid;
+		mDid = snapshot.mDid;
+		mOrd = snapshot.mOrd;
+		mMod = snapshot.mMod;
+		mUsn = snapshot.mUsn;
+		mType = snapshot.mType;
+		mQueue = snapshot.mQueue;
+		mDue = snapshot.mDue;
+		mIvl = snapshot.mIvl;
+		mFactor = snapshot.mFactor;
+		mReps = snapshot.mReps;
+		mLapses = snapshot.mLapses;
+		mLeft = snapshot.mLeft;
+		mODue = snapshot.mODue;
+		mODid = snapshot.mODid;
+		mFlags = snapshot.mFlags;
+		mData = snapshot.mData;
+	}
+
 	public void load() {
 		Cursor cursor = null;
 		try {
@@ -243,13 +271,21 @@ public class Card implements Cloneable {
 	}
 	public HashMap<String, String> _getQA(boolean reload, boolean browser) {
 		if (mQA == null || reload) {
-			mQA = new HashMap<String, String>();
 			Note n = note(reload);
+			long did = mODid != 0l ? mODid : mDid;
+			RenderCache cache = mCol.getRenderCache();
+			if (!browser && !reload) {
+				// may have been rendered ahead of time
+				mQA = cache.get(mId, did);
+				if (mQA != null) {
+					return mQA;
+				}
+			}
 			JSONObject m = model();
 			JSONObject t = template();
 			Object[] data;
 			try {
-				data = new Object[] { mId, n.getId(), m.getLong("id"), mODid != 0l ? mODid : mDid,
+				data = new Object[] { mId, n.getId(), m.getLong("id"), did,
 						mOrd, n.stringTags(), n.joinedFields() };
 			} catch (JSONException e) {
 				throw new RuntimeException(e);
@@ -264,6 +300,9 @@ public class Card implements Cloneable {
 				}
 			}
 			mQA = mCol._renderQA(data, args);
+			if (!browser) {
+				cache.put(mId, mNid, did, mQA);
+			}
 		}
 		return mQA;
 	}
@@ -701,6 +740,60 @@ public class Card implements Cloneable {
         mCol = col;
     }
 
+	/**
+	 * Copy of the card's table entries only, without rendered html, note or timer. Kept for undo, so that long review
+	 * sessions don't hold on to whole cards.
+	 */
+	public static final class Snapshot {
+		private final long mId;
+		private final long mNid;
+		private final long mDid;
+		private final int mOrd;
+		private final long mMod;
+		private final int mUsn;
+		private final int mType;
+		private final int mQueue;
+		private final long mDue;
+		private final int mIvl;
+		private final int mFactor;
+		private final int mReps;
+		private final int mLapses;
+		private final int mLeft;
+		private final long mODue;
+		private final long mODid;
+		private final int mFlags;
+		private final String mData;
+
+		private Snapshot(Card c) {
+			mId = c.mId;
+			mNid = c.mNid;
+			mDid = c.mDid;
+			mOrd = c.mOrd;
+			mMod = c.mMod;
+			mUsn = c.mUsn;
+			mType = c.mType;
+			mQueue = c.mQueue;
+			mDue = c.mDue;
+			mIvl = c.mIvl;
+			mFactor = c.mFactor;
+			mReps = c.mReps;
+			mLapses = c.mLapses;
+			mLeft = c.mLeft;
+			mODue = c.mODue;
+			mODid = c.mODid;
+			mFlags = c.mFlags;
+			mData = c.mData;
+		}
+
+		public long getId() {
+			return mId;
+		}
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
     public Card clone() {
 		try {
 			return (Card) super.clone();
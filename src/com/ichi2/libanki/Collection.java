@@ -18,12 +18,15 @@ package com.ichi2.libanki;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.ichi2.anki.AnkiDatabaseManager;
 import com.ichi2.anki.AnkiDb;
 import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.BackupManager;
 import com.ichi2.anki.UIUtils;
+import com.ichi2.anki2.R;
 import com.ichi2.async.DeckTask;
 import com.ichi2.async.DeckTask.TaskData;
 
@@ -34,9 +37,14 @@ import org.json.JSONObject;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // Anki maintains a cache of used tags so it can quickly present a list of tags
 // for autocomplete and in the browser. For efficiency, deletions are not
@@ -60,6 +68,7 @@ public class Collection {
 	private Tags mTags;
 
 	private Sched mSched;
+	private RenderCache mRenderCache;
 
 	private double mStartTime;
 	private int mStartReps;
@@ -76,7 +85,20 @@ public class Collection {
 	private JSONObject mConf;
 	// END: SQL table columns
 
-	private Object[] mUndo;
+	// undo: type of the last undoable action and a ring buffer of the cards' states before the last reviews
+	private static final int UNDO_NONE = 0;
+	private static final int UNDO_REVIEW = 1;
+	private static final int UNDO_CHECKPOINT = 2;
+	private static final int UNDO_SIZE = 100;
+	private int mUndoType;
+	private String mUndoName;
+	private final Card.Snapshot[] mUndoCards = new Card.Snapshot[UNDO_SIZE];
+	private final long[] mUndoRevlogIds = new long[UNDO_SIZE];
+	private final int[] mUndoRevlogEases = new int[UNDO_SIZE];
+	private final int[] mUndoRevlogTimes = new int[UNDO_SIZE];
+	private final int[] mUndoRevlogTypes = new int[UNDO_SIZE];
+	private int mUndoHead;
+	private int mUndoCount;
 
 	private String mPath;
 	private boolean mClosing = false;
@@ -95,7 +117,17 @@ public class Collection {
 
 	private static Collection sCurrentCollection;
 
+	/**
+	 * Guards the state of the open collection which is not thread safe: the models and decks registries, the
+	 * scheduler queues and the helpers of the main connection. DeckTasks hold it while they run, other threads
+	 * working on the collection take it for each step.
+	 * LIBANKI: not in libanki
+	 */
+	private static final Object sLock = new Object();
+
 	public static synchronized Collection openCollection(String path) {
+		// the backup and maintenance of the last closed collection may still be using the file
+		BackupManager.waitForBackup();
 		sCurrentCollection = Storage.Collection(path);
 		return sCurrentCollection;
 	}
@@ -114,6 +146,7 @@ public class Collection {
 		mModels = new Models(this);
 		mDecks = new Decks(this);
 		mTags = new Tags(this);
+		mRenderCache = new RenderCache(this);
 		load();
 		if (mCrt == 0) {
 			mCrt = UIUtils.getDayStart() / 1000;
@@ -137,6 +170,11 @@ public class Collection {
 		sCurrentCollection = col;
 	}
 
+	/** The lock to hold while using the collection outside of a DeckTask. LIBANKI: not in libanki */
+	public static Object getLock() {
+		return sLock;
+	}
+
 	public String name() {
 		String n = (new File(mPath)).getName().replace(".anki2", "");
 		// TODO:
@@ -266,6 +304,7 @@ public class Collection {
 		// DeckTask.waitToFinish();
 		// }
 		mClosing = true;
+		mRenderCache.shutdown();
 		if (mDb != null) {
 			cleanup();
 			if (save) {
@@ -383,6 +422,14 @@ public class Collection {
 	 */
 
 	public int nextID(String type) {
+		return nextIDs(type, 1);
+	}
+
+	/**
+	 * Reserve count consecutive ids of the given type and return the first one.
+	 * LIBANKI: not in libanki
+	 */
+	public int nextIDs(String type, int count) {
 		type = "next" + type.toUpperCase();
 		int id;
 		try {
@@ -391,7 +438,7 @@ public class Collection {
 			id = 1;
 		}
 		try {
-			mConf.put(type, id + 1);
+			mConf.put(type, id + count);
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
@@ -462,9 +509,77 @@ public class Collection {
 		return ncards;
 	}
 
+	/** Notes inserted per transaction by addNotes */
+	private static final int ADD_NOTES_BATCH = 500;
+
+	/**
+	 * Add many new notes at once. Note and card ids as well as due positions are allocated in ranges, notes and cards
+	 * are inserted through compiled statements in batched transactions and tags are registered once at the end.
+	 * Notes without any card to generate are skipped.
+	 * LIBANKI: not in libanki
+	 * @return number of new cards
+	 */
+	public int addNotes(List<Note> notes) {
+		long id = Utils.maxID(mDb);
+		int due = nextIDs("pos", notes.size());
+		long now = Utils.intNow();
+		int usn = usn();
+		int ncards = 0;
+		ArrayList<String> tags = new ArrayList<String>();
+		SQLiteStatement noteInsert = mDb.getDatabase().compileStatement(
+				"INSERT INTO notes VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		SQLiteStatement cardInsert = mDb.getDatabase().compileStatement(
+				"INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")");
+		try {
+			int inBatch = 0;
+			mDb.getDatabase().beginTransaction();
+			try {
+				for (Note note : notes) {
+					// available templates are computed once per note
+					ArrayList<JSONObject> cms = findTemplates(note);
+					if (cms.size() > 0) {
+						note.setId(id++);
+						note.flushNew(noteInsert, now, usn);
+						tags.addAll(note.getTags());
+						for (JSONObject template : cms) {
+							long did = _didForTemplate(note, template);
+							cardInsert.bindLong(1, id++);
+							cardInsert.bindLong(2, note.getId());
+							cardInsert.bindLong(3, did);
+							cardInsert.bindLong(4, template.getInt("ord"));
+							cardInsert.bindLong(5, now);
+							cardInsert.bindLong(6, usn);
+							cardInsert.bindLong(7, _dueForDid(did, due));
+							cardInsert.execute();
+							ncards++;
+						}
+					}
+					due++;
+					if (++inBatch == ADD_NOTES_BATCH) {
+						mDb.getDatabase().setTransactionSuccessful();
+						mDb.getDatabase().endTransaction();
+						mDb.getDatabase().beginTransaction();
+						inBatch = 0;
+					}
+				}
+				mTags.register(tags);
+				mDb.getDatabase().setTransactionSuccessful();
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			} finally {
+				mDb.getDatabase().endTransaction();
+			}
+		} finally {
+			noteInsert.close();
+			cardInsert.close();
+		}
+		mDb.setMod(true);
+		return ncards;
+	}
+
 	public void remNotes(long[] ids) {
 		ArrayList<Long> list = mDb.queryColumn(Long.class,
-				"SELECT id FROM cards WHERE nid IN " + Utils.ids2str(ids), 0);
+				"SELECT id FROM cards WHERE nid IN " + mDb.idSet("remnids", ids), 0);
 		long[] cids = new long[list.size()];
 		int i = 0;
 		for (long l : list) {
@@ -480,7 +595,7 @@ public class Collection {
 		if (ids.length == 0) {
 			return;
 		}
-		String strids = Utils.ids2str(ids);
+		String strids = mDb.idSet("remnids", ids);
 		// we need to log these independently of cards, as one side may have
 		// more card templates
 		_logRem(ids, Sched.REM_NOTE);
@@ -534,7 +649,7 @@ public class Collection {
 	 */
 	public ArrayList<Long> genCards(long[] nids) {
 		// build map of (nid,ord) so we don't create dupes
-		String snids = Utils.ids2str(nids);
+		String snids = mDb.idSet("gennids", nids);
 		HashMap<Long, HashMap<Integer, Long>> have = new HashMap<Long, HashMap<Integer, Long>>();
 		HashMap<Long, Long> dids = new HashMap<Long, Long>();
 		Cursor cur = null;
@@ -545,7 +660,7 @@ public class Collection {
 			while (cur.moveToNext()) {
 				// existing cards
 				long nid = cur.getLong(1);
-				if (!have.containsKey(nids)) {
+				if (!have.containsKey(nid)) {
 					have.put(nid, new HashMap<Integer, Long>());
 				}
 				have.get(nid).put(cur.getInt(2), cur.getLong(0));
@@ -609,12 +724,12 @@ public class Collection {
 						did = mDecks.get(did).getLong("id");
 						// we'd like to use the same due# as sibling cards, but we can't retrieve that quickly, so we give it a new id instead
 						data.add(new Object[] { ts, nid, did, tord, now,
-								usn, nextID("pos") });
+								usn, 0 });
 						ts += 1;
 					}
 				}
 				// note any cards that need removing
-				if (have.containsKey(nids)) {
+				if (have.containsKey(nid)) {
 					for (Map.Entry<Integer, Long> n : have.get(nid).entrySet()) {
 						if (!avail.contains(n.getKey())) {
 							rem.add(n.getValue());
@@ -629,6 +744,11 @@ public class Collection {
 				cur.close();
 			}
 		}
+		// positions are reserved in one go
+		int pos = nextIDs("pos", data.size());
+		for (Object[] o : data) {
+			o[6] = pos++;
+		}
 		// bulk update
 		mDb.executeMany("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")", data);
 		return rem;
@@ -651,6 +771,16 @@ public class Collection {
 		} catch (JSONException e) {
 			new RuntimeException(e);
 		}
+		card.setDid(_didForTemplate(note, template));
+		card.setDue(_dueForDid(card.getDid(), due));
+		if (flush) {
+			card.flush();
+		}
+		return card;
+	}
+
+	/** The deck a new card of the given template goes to */
+	private long _didForTemplate(Note note, JSONObject template) {
 		long did;
 		try {
 			did = template.getLong("did");
@@ -658,17 +788,12 @@ public class Collection {
 			did = 0;
 		}
 		try {
-			card.setDid(did != 0 ? did : note.model().getLong("did"));
+			did = did != 0 ? did : note.model().getLong("did");
 			// if invalid did, use default instead
-			card.setDid(mDecks.get(card.getDid()).getLong("id"));
+			return mDecks.get(did).getLong("id");
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
-		}		
-		card.setDue(_dueForDid(card.getDid(), due));
-		if (flush) {
-			card.flush();
 		}
-		return card;
 	}
 
 	public int _dueForDid(long did, int due) {
@@ -710,7 +835,7 @@ public class Collection {
 		if (ids.length == 0) {
 			return;
 		}
-		String sids = Utils.ids2str(ids);
+		String sids = mDb.idSet("remcids", ids);
 		long[] nids = Utils.arrayList2array(mDb.queryColumn(Long.class,
 				"SELECT nid FROM cards WHERE id IN " + sids, 0));
 		// remove cards
@@ -719,7 +844,7 @@ public class Collection {
 		mDb.execute("DELETE FROM revlog WHERE cid IN " + sids);
 		// then notes
 		nids = Utils.arrayList2array(mDb.queryColumn(Long.class,
-				"SELECT id FROM notes WHERE id IN " + Utils.ids2str(nids)
+				"SELECT id FROM notes WHERE id IN " + mDb.idSet("remnids", nids)
 						+ " AND id NOT IN (SELECT nid FROM cards)", 0));
 		_remNotes(nids);
 	}
@@ -754,7 +879,7 @@ public class Collection {
 
 	/** Update field checksums and sort cache, after find&replace, etc. */
 	public void updateFieldCache(long[] nids) {
-		String snids = Utils.ids2str(nids);
+		String snids = mDb.idSet("fieldnids", nids);
 		ArrayList<Object[]> r = new ArrayList<Object[]>();
 		for (Object[] o : _fieldData(snids)) {
 			String[] fields = Utils.splitFields((String) o[2]);
@@ -777,12 +902,19 @@ public class Collection {
 
 	public ArrayList<HashMap<String, String>> renderQA(int[] ids, String type) {
 		String where;
+		long[] lids = null;
+		if (ids != null) {
+			lids = new long[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				lids[i] = ids[i];
+			}
+		}
 		if (type.equals("card")) {
-			where = "AND c.id IN " + Utils.ids2str(ids);
+			where = "AND c.id IN " + mDb.idSet("qaids", lids);
 		} else if (type.equals("fact")) {
-			where = "AND f.id IN " + Utils.ids2str(ids);
+			where = "AND f.id IN " + mDb.idSet("qaids", lids);
 		} else if (type.equals("model")) {
-			where = "AND m.id IN " + Utils.ids2str(ids);
+			where = "AND m.id IN " + mDb.idSet("qaids", lids);
 		} else if (type.equals("all")) {
 			where = "";
 		} else {
@@ -896,23 +1028,29 @@ public class Collection {
 		ArrayList<HashMap<String, String>> data = new ArrayList<HashMap<String, String>>();
 		Cursor cur = null;
 		String lim = "";
-		if (!wholeCollection) {
-			lim = " AND c.did IN " + mSched._deckLimit();
-		}
-		HashMap<Long, HashMap<Integer, String>> templates = mModels.getTemplateNames();
+		HashMap<Long, HashMap<Integer, String>> templates;
 		HashMap<Long, String> decks = null; 
-		if (wholeCollection) {
-			decks = new HashMap<Long, String>(); 
-			try {
-				for (JSONObject o : mDecks.all()) {
-					decks.put(o.getLong("id"), o.getString("name"));
+		String today;
+		// runs as a background task, so the state shared with the other tasks is copied under the lock first
+		synchronized (sLock) {
+			if (!wholeCollection) {
+				lim = " AND c.did IN " + mSched._deckLimit();
+			}
+			templates = mModels.getTemplateNames();
+			if (wholeCollection) {
+				decks = new HashMap<Long, String>(); 
+				try {
+					for (JSONObject o : mDecks.all()) {
+						decks.put(o.getLong("id"), o.getString("name"));
+					}
+				} catch (JSONException e) {
+					throw new RuntimeException(e);
 				}
-			} catch (JSONException e) {
-				throw new RuntimeException(e);
 			}
+			today = Integer.toString(mSched.getToday());
 		}
 		try {
-			cur = mDb.getDatabase().rawQuery("SELECT c.id, n.sfld, n.mid, c.ord, c.did, c.queue, n.tags, c.due, c.type FROM cards c, notes n WHERE c.nid = n.id" + lim, null);
+			cur = mDb.getReadDatabase().rawQuery("SELECT c.id, n.sfld, n.mid, c.ord, c.did, c.queue, n.tags, c.due, c.type FROM cards c, notes n WHERE c.nid = n.id" + lim, null);
 			while (cur.moveToNext()) {
 				HashMap<String, String> map = new HashMap<String, String>();
 				map.put("id", cur.getString(0));
@@ -925,7 +1063,7 @@ public class Collection {
 				map.put("tags", tags);
 				String due = cur.getString(7);
 				if (cur.getInt(8) == 1) {
-					due = Integer.toString(mSched.getToday());
+					due = today;
 				}
 				map.put("due", due);
 				data.add(map);
@@ -988,27 +1126,28 @@ public class Collection {
 	 */
 
 	/**
-	 * [type, undoName, data] type 1 = review; type 2 = checkpoint
+	 * Forget the undo history.
 	 */
 	public void clearUndo() {
-		mUndo = new Object[3];
+		mUndoType = UNDO_NONE;
+		mUndoName = null;
+		for (int i = 0; i < UNDO_SIZE; i++) {
+			mUndoCards[i] = null;
+		}
+		mUndoCount = 0;
 	}
 
 	/** Undo menu item name, or None if undo unavailable. */
 	public String undoName() {
-		if (mUndo[1] == null) {
-			return null;
-		} else {
-			return (String) mUndo[1];
-		}
+		return mUndoName;
 	}
 
 	public boolean undoAvailable() {
-		return mUndo[0] != null;
+		return mUndoType != UNDO_NONE;
 	}
 
 	public Card undo() {
-		if (((Integer) mUndo[0]) == 1) {
+		if (mUndoType == UNDO_REVIEW) {
 			return _undoReview();
 		} else {
 			_undoOp();
@@ -1016,32 +1155,56 @@ public class Collection {
 		}
 	}
 
+	/**
+	 * Remember the state of a card before it is answered. Only the last UNDO_SIZE reviews are kept; older ones are
+	 * overwritten.
+	 */
 	public void markReview(Card card) {
-		LinkedList<Card> old = new LinkedList<Card>();
-		if (mUndo[0] != null) {
-			if ((Integer) mUndo[0] == 1) {
-				old.addAll((LinkedList<Card>) mUndo[2]);
-			}
+		if (mUndoType != UNDO_REVIEW) {
 			clearUndo();
 		}
-		mUndo[0] = 1;
-		mUndo[1] = "review";
-		old.add(card.clone());
-		mUndo[2] = old;
+		mUndoType = UNDO_REVIEW;
+		mUndoName = "review";
+		mUndoHead = (mUndoHead + 1) % UNDO_SIZE;
+		mUndoCards[mUndoHead] = card.snapshot();
+		mUndoRevlogIds[mUndoHead] = 0;
+		mUndoCount = Math.min(mUndoCount + 1, UNDO_SIZE);
+	}
+
+	/**
+	 * Called by the scheduler after writing the revlog entry of the last review, so undo can remove it without
+	 * searching the revlog.
+	 */
+	public void markReviewLogged(long id, int ease, int time, int type) {
+		if (mUndoType != UNDO_REVIEW || mUndoCount == 0) {
+			return;
+		}
+		mUndoRevlogIds[mUndoHead] = id;
+		mUndoRevlogEases[mUndoHead] = ease;
+		mUndoRevlogTimes[mUndoHead] = time;
+		mUndoRevlogTypes[mUndoHead] = type;
 	}
 
 	private Card _undoReview() {
-		LinkedList<Card> data = (LinkedList<Card>) mUndo[2];
-		Card c = data.removeLast();
-		if (data.size() == 0) {
+		int i = mUndoHead;
+		Card c = new Card(this, mUndoCards[i]);
+		long revlogId = mUndoRevlogIds[i];
+		int ease = mUndoRevlogEases[i];
+		int time = mUndoRevlogTimes[i];
+		int revlogType = mUndoRevlogTypes[i];
+		mUndoCards[i] = null;
+		mUndoHead = (mUndoHead + UNDO_SIZE - 1) % UNDO_SIZE;
+		mUndoCount -= 1;
+		if (mUndoCount == 0) {
 			clearUndo();
 		}
 		// write old data
 		c.flush();
 		// and delete revlog entry
-		long last = mDb.queryLongScalar("SELECT id FROM revlog WHERE cid = "
-				+ c.getId() + " ORDER BY id DESC LIMIT 1");
-		mDb.execute("DELETE FROM revlog WHERE id = " + last);
+		if (revlogId != 0) {
+			mDb.execute("DELETE FROM revlog WHERE id = " + revlogId);
+			mSched._updateEtaStats(ease, time, revlogType, -1);
+		}
 		// and finally, update daily count
 		// FIXME: what to do in cramming case?
 		int n = c.getQueue() == 3 ? 1 : c.getQueue();
@@ -1053,11 +1216,12 @@ public class Collection {
 	/** Call via .save() */
 	private void _markOp(String name) {
 		if (name != null && name.length() > 0) {
-			mUndo[0] = 2;
-			mUndo[1] = name;
+			clearUndo();
+			mUndoType = UNDO_CHECKPOINT;
+			mUndoName = name;
 		} else {
 			// saving disables old checkpoint, but not review undo
-			if (mUndo[0] != null && (Integer) mUndo[0] == 2) {
+			if (mUndoType == UNDO_CHECKPOINT) {
 				clearUndo();
 			}
 		}
@@ -1076,49 +1240,170 @@ public class Collection {
 
 	/** Fix possible problems and rebuild caches. */
 	public long fixIntegrity() {
+		return fixIntegrity(null);
+	}
+	/**
+	 * Fix possible problems and rebuild caches.
+	 * DIFFERS FROM LIBANKI: the steps run in separate transactions and the field cache is rebuilt in batches on a
+	 * worker pool, reporting progress to the given task (may be null).
+	 */
+	public long fixIntegrity(DeckTask task) {
 		File file = new File(mPath);
 		long oldSize = file.length();
-    	try {
-            mDb.getDatabase().beginTransaction();
-            try {
-        		save();
-        		if (!mDb.queryString("PRAGMA integrity_check").equals("ok")) {
-        			return -1;
-        		}
-        		// delete any notes with missing cards
-        		ArrayList<Long> ids = mDb.queryColumn(Long.class, "SELECT id FROM notes WHERE id NOT IN (SELECT DISTINCT nid FROM cards)", 0);
-        		_remNotes(Utils.arrayList2array(ids));
-        		// tags
-        		mTags.registerNotes();
-        		// field cache
-        		for (JSONObject m : mModels.all()) {
-        			updateFieldCache(Utils.arrayList2array(mModels.nids(m)));
-        		}
-        		// new card position
-        		mConf.put("nextPos", mDb.queryScalar("SELECT max(due) + 1 FROM cards WHERE type = 0", false));
-        		// reviews should have a reasonable due
-        		ids = mDb.queryColumn(Long.class, "SELECT id FROM cards WHERE queue = 2 AND due > 10000", 0);
-        		if (ids.size() > 0) {
-        			mDb.execute("UPDATE cards SET due = 0, mod = " + Utils.intNow() + ", usn = " + usn() + " WHERE id IN " + Utils.ids2str(Utils.arrayList2array(ids)));
-        		}
-        		mDb.getDatabase().setTransactionSuccessful();
-	        } catch (JSONException e) {
+		try {
+			save();
+			publishCheckProgress(task, R.string.check_db_integrity);
+			if (!mDb.queryString("PRAGMA integrity_check").equals("ok")) {
+				return -1;
+			}
+			mDb.getDatabase().beginTransaction();
+			try {
+				// delete any notes with missing cards
+				ArrayList<Long> ids = mDb.queryColumn(Long.class, "SELECT id FROM notes WHERE id NOT IN (SELECT DISTINCT nid FROM cards)", 0);
+				_remNotes(Utils.arrayList2array(ids));
+				// tags
+				publishCheckProgress(task, R.string.check_db_tags);
+				mTags.registerNotes();
+				mDb.getDatabase().setTransactionSuccessful();
+			} finally {
+				mDb.getDatabase().endTransaction();
+			}
+			// field cache
+			_rebuildFieldCache(task);
+			mDb.getDatabase().beginTransaction();
+			try {
+				// new card position
+				mConf.put("nextPos", mDb.queryScalar("SELECT max(due) + 1 FROM cards WHERE type = 0", false));
+				// reviews should have a reasonable due
+				ArrayList<Long> ids = mDb.queryColumn(Long.class, "SELECT id FROM cards WHERE queue = 2 AND due > 10000", 0);
+				if (ids.size() > 0) {
+					mDb.execute("UPDATE cards SET due = 0, mod = " + Utils.intNow() + ", usn = " + usn() + " WHERE id IN " + Utils.ids2str(Utils.arrayList2array(ids)));
+				}
+				save();
+				mDb.getDatabase().setTransactionSuccessful();
+			} catch (JSONException e) {
 				throw new RuntimeException(e);
 			} finally {
-	        	mDb.getDatabase().endTransaction();
-	        }
-    	} catch (RuntimeException e) {
-    		Log.e(AnkiDroidApp.TAG, "doInBackgroundCheckDatabase - RuntimeException on marking card: " + e);
+				mDb.getDatabase().endTransaction();
+			}
+		} catch (RuntimeException e) {
+			Log.e(AnkiDroidApp.TAG, "doInBackgroundCheckDatabase - RuntimeException on marking card: " + e);
 			AnkiDroidApp.saveExceptionReportFile(e, "doInBackgroundCheckDatabase");
-    		return -1;
-    	}
+			return -1;
+		}
 		// and finally, optimize
+		publishCheckProgress(task, R.string.check_db_optimize);
 		optimize();
 		file = new File(mPath);
 		long newSize = file.length();
 		return (long)((oldSize - newSize) / 1024);
 	}
 
+
+	/** Notes read, processed and written per step of the field cache rebuild */
+	private static final int FIELD_CACHE_BATCH = 1000;
+
+	/**
+	 * Recompute sort field and checksum of all notes. Notes are read in id order in batches, the values are computed
+	 * on a worker pool, and only rows which actually changed are written, one transaction per batch.
+	 * LIBANKI: not in libanki
+	 */
+	private void _rebuildFieldCache(DeckTask task) {
+		final HashMap<Long, Integer> sortIdx = new HashMap<Long, Integer>();
+		for (JSONObject m : mModels.all()) {
+			try {
+				sortIdx.put(m.getLong("id"), mModels.sortIdx(m));
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		int total = mDb.queryScalar("SELECT count() FROM notes", false);
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		SQLiteStatement update = mDb.getDatabase().compileStatement("UPDATE notes SET sfld = ?, csum = ? WHERE id = ?");
+		try {
+			long lastId = Long.MIN_VALUE;
+			int done = 0;
+			while (true) {
+				// keyset paging keeps every query cheap, however far we are
+				final ArrayList<Object[]> batch = new ArrayList<Object[]>(FIELD_CACHE_BATCH);
+				Cursor cur = null;
+				try {
+					cur = mDb.getDatabase().rawQuery("SELECT id, mid, flds, sfld, csum FROM notes WHERE id > " + lastId
+							+ " ORDER BY id LIMIT " + FIELD_CACHE_BATCH, null);
+					while (cur.moveToNext()) {
+						batch.add(new Object[]{cur.getLong(0), cur.getLong(1), cur.getString(2), cur.getString(3), cur.getLong(4)});
+					}
+				} finally {
+					if (cur != null && !cur.isClosed()) {
+						cur.close();
+					}
+				}
+				if (batch.isEmpty()) {
+					break;
+				}
+				lastId = (Long) batch.get(batch.size() - 1)[0];
+
+				// each worker handles a slice of the batch and returns the rows which need an update
+				ArrayList<Future<ArrayList<Object[]>>> results = new ArrayList<Future<ArrayList<Object[]>>>();
+				int slice = (batch.size() + workers - 1) / workers;
+				for (int from = 0; from < batch.size(); from += slice) {
+					final int start = from;
+					final int end = Math.min(from + slice, batch.size());
+					results.add(pool.submit(new Callable<ArrayList<Object[]>>() {
+						@Override
+						public ArrayList<Object[]> call() {
+							ArrayList<Object[]> changed = new ArrayList<Object[]>();
+							for (int i = start; i < end; i++) {
+								Object[] o = batch.get(i);
+								String[] fields = Utils.splitFields((String) o[2]);
+								Integer idx = sortIdx.get(o[1]);
+								String sfld = Utils.stripHTML(fields[idx == null ? 0 : idx]);
+								long csum = Utils.fieldChecksum(fields[0]);
+								if (!sfld.equals(o[3]) || csum != (Long) o[4]) {
+									changed.add(new Object[]{sfld, csum, o[0]});
+								}
+							}
+							return changed;
+						}
+					}));
+				}
+				mDb.getDatabase().beginTransaction();
+				try {
+					for (Future<ArrayList<Object[]>> result : results) {
+						for (Object[] o : result.get()) {
+							update.bindString(1, (String) o[0]);
+							update.bindLong(2, (Long) o[1]);
+							update.bindLong(3, (Long) o[2]);
+							update.execute();
+						}
+					}
+					mDb.getDatabase().setTransactionSuccessful();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				} finally {
+					mDb.getDatabase().endTransaction();
+				}
+				done += batch.size();
+				if (task != null) {
+					task.doProgress(new TaskData(AnkiDroidApp.getAppResources().getString(R.string.check_db_fields, done, total)));
+				}
+			}
+		} finally {
+			update.close();
+			pool.shutdownNow();
+		}
+	}
+
+
+	private void publishCheckProgress(DeckTask task, int id) {
+		if (task != null) {
+			task.doProgress(new TaskData(AnkiDroidApp.getAppResources().getString(id)));
+		}
+	}
+
 	public void optimize() {
 		Log.i(AnkiDroidApp.TAG, "executing VACUUM statement");
 		mDb.execute("VACUUM");
@@ -1197,6 +1482,10 @@ public class Collection {
 		return mCrt;
 	}
 
+	public RenderCache getRenderCache() {
+		return mRenderCache;
+	}
+
 	public Sched getSched() {
 		return mSched;
 	}
@@ -81,13 +81,34 @@ public class Finder {
 
 	/** Return a list of card ids for QUERY */
 	public ArrayList<Long> findCards(String query, boolean full, String order) {
+		String sql = findCardsSql(query, full, order);
+		if (sql == null) {
+			return new ArrayList<Long>();
+		}
+		ArrayList<Long> res = mCol.getDb().queryColumn(Long.class, sql, 0, true);
+		try {
+			if (_order().length() == 0 && mCol.getConf().getBoolean("sortBackwards")) {
+				Collections.reverse(res);
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Return the sql query selecting the card ids for QUERY, or null if the query is invalid. Can be used as a
+	 * subquery to act on the found cards without loading their ids.
+	 * LIBANKI: not in libanki
+	 */
+	public String findCardsSql(String query, boolean full, String order) {
 		mOrder = order;
 		mQuery = query;
 		mFull = full;
 		_findLimits();
 		try {
 			if (!mLims.getBoolean("valid")) {
-				return new ArrayList<Long>();
+				return null;
 			}
 			JSONArray ja = mLims.getJSONArray("preds");
 			StringBuilder sb = new StringBuilder();
@@ -111,11 +132,7 @@ public class Finder {
 					query = query.replace(":" + names.getString(i), "\'" + args.getString(names.getString(i)).replace('\'', '"') + "\'");
 				}				
 			}
-			ArrayList<Long> res = mCol.getDb().queryColumn(Long.class, query, 0);
-			if (order.length() == 0 && mCol.getConf().getBoolean("sortBackwards")) {
-				Collections.reverse(res);
-			}
-			return res;
+			return query;
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
@@ -17,8 +17,16 @@
 
 package com.ichi2.libanki;
 
+import android.database.Cursor;
 import android.text.Html;
+import android.util.Log;
 
+import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.async.DeckTask;
+import com.ichi2.utils.HtmlFilterChain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,6 +42,35 @@ public class LaTeX {
     public static Pattern sMathPattern = Pattern.compile("\\[\\$\\$\\](.+?)\\[/\\$\\$\\]");
     public static Pattern sEntityPattern = Pattern.compile("(&[a-z]+;)");
 
+    /**
+     * Filters converting the three kinds of latex tags to image links, for use in an {@link HtmlFilterChain}.
+     */
+    public static final HtmlFilterChain.Filter[] FILTERS = new HtmlFilterChain.Filter[] {
+            new LaTeXFilter(sStandardPattern, "", ""),
+            new LaTeXFilter(sExpressionPattern, "$", "$"),
+            new LaTeXFilter(sMathPattern, "\\begin{displaymath}", "\\end{displaymath}") };
+
+    private static final HtmlFilterChain sFilterChain = new HtmlFilterChain(FILTERS);
+
+    /** Number of expressions whose image links are kept */
+    private static final int LINK_CACHE_SIZE = 512;
+
+    /**
+     * Image links by raw latex expression (including the pre- and suffix of its tag), most recently used last.
+     * Converting the html and hashing is the expensive part of {@link #_imgLink(String)}, and the same expressions
+     * are shown again and again.
+     */
+    private static final LinkedHashMap<String, String> sLinkCache = new LinkedHashMap<String, String>(
+            LINK_CACHE_SIZE + 1, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > LINK_CACHE_SIZE;
+        }
+    };
+
     /**
      * Convert TEXT with embedded latex tags to image links.
      * @param html The content to search for embedded latex tags.
@@ -41,54 +78,92 @@ public class LaTeX {
      * @return The content with the tags converted to links.
      */
     public static String mungeQA(String html, Collection col) {
-        StringBuffer sb = new StringBuffer();
-        String contentLeft = html;
+        return sFilterChain.apply(html);
+    }
 
-        Matcher matcher = sStandardPattern.matcher(contentLeft);
-        while (matcher.find()) {
-            matcher.appendReplacement(sb, _imgLink(col, matcher.group(1)));
+
+    /**
+     * Fill the image link cache with the expressions of the notes in the given decks. Run by the background lane
+     * task {@link DeckTask#TASK_TYPE_PRESCAN_LATEX}, so closing the collection waits for it, and it stops when the
+     * task is cancelled.
+     * @param dids The decks to scan, as returned by {@link Sched#_deckLimit()}.
+     */
+    public static void prescan(Collection col, String dids) {
+        Cursor cur = null;
+        int notes = 0;
+        try {
+            cur = col.getDb().getReadDatabase().rawQuery("SELECT flds FROM notes WHERE id IN "
+                    + "(SELECT nid FROM cards WHERE did IN " + dids + ") AND flds LIKE '%[%]%' LIMIT "
+                    + LINK_CACHE_SIZE, null);
+            while (cur.moveToNext() && !DeckTask.taskIsCancelled()) {
+                // rendering the fields fills the cache
+                mungeQA(cur.getString(0), col);
+                notes++;
+            }
+        } catch (RuntimeException e) {
+            Log.w(AnkiDroidApp.TAG, "LaTeX - prescan stopped: " + e);
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
         }
-        matcher.appendTail(sb);
-        
-        contentLeft = html;
-        matcher = sExpressionPattern.matcher(contentLeft);
-        while (matcher.find()) {
-            matcher.appendReplacement(sb, _imgLink(col, "$" + matcher.group(1) + "$"));
+        Log.i(AnkiDroidApp.TAG, "LaTeX - prescanned " + notes + " notes");
+    }
+
+
+    private static class LaTeXFilter implements HtmlFilterChain.Filter {
+        private final Pattern mPattern;
+        private final String mPrefix;
+        private final String mSuffix;
+
+
+        LaTeXFilter(Pattern pattern, String prefix, String suffix) {
+            mPattern = pattern;
+            mPrefix = prefix;
+            mSuffix = suffix;
         }
-        matcher.appendTail(sb);
-        
-        contentLeft = html;
-        matcher = sMathPattern.matcher(contentLeft);
-        while (matcher.find()) {
-            matcher.appendReplacement(sb, _imgLink(col,
-                    "\\begin{displaymath}" + matcher.group(1) + "\\end{displaymath}"));
+
+
+        @Override
+        public String pattern() {
+            return mPattern.pattern();
+        }
+
+
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            out.append(_imgLink(mPrefix + m.group(group + 1) + mSuffix));
         }
-        matcher.appendTail(sb);
-        
-        return sb.toString();
     }
 
     /**
      * Return an img link for LATEX, creating it if necessary.
-     * @param col The associated Collection object.
      * @param latex The LATEX expression to be replaced
      * @return A string with the link to the image that is the representation
      * of the LATEX expression.
      */
-    private static String _imgLink(Collection col, String latex) {
-        String txt = _latexFromHtml(col, latex);
+    private static String _imgLink(String latex) {
+        synchronized (sLinkCache) {
+            String link = sLinkCache.get(latex);
+            if (link != null) {
+                return link;
+            }
+        }
+        String txt = _latexFromHtml(latex);
         String fname = "latex-" + Utils.checksum(txt) + ".png";
         String link = "<img src=\"" + fname + "\">";
+        synchronized (sLinkCache) {
+            sLinkCache.put(latex, link);
+        }
         return link;
     }
     
     /**
      * Convert entities and fix newlines.
-     * @param col The associated Collection where the LATEX is found
      * @param latex The 
      * @return
      */
-    private static String _latexFromHtml(Collection col, String latex) {
+    private static String _latexFromHtml(String latex) {
         StringBuffer sb = new StringBuffer();
         Matcher matcher = sEntityPattern.matcher(latex);
         while (matcher.find()) {
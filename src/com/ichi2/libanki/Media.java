@@ -174,7 +174,7 @@ public class Media {
      * @return True if both files have the same contents
      */
     private boolean filesIdentical(String filepath1, String filepath2) {
-        return (Utils.fileChecksum(filepath1) == Utils.fileChecksum(filepath2));
+        return Utils.fileChecksum(filepath1).equals(Utils.fileChecksum(filepath2));
     }
     
     // String manipulation
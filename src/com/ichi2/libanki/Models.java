@@ -93,7 +93,9 @@ public class Models {
 
 	private Collection mCol;
 	private boolean mChanged;
-	private HashMap<Long, JSONObject> mModels;
+	private volatile HashMap<Long, JSONObject> mModels;
+	/** Unparsed registry, until the models are first accessed */
+	private String mJson;
 
     // BEGIN SQL table entries
     private int mId;
@@ -143,24 +145,45 @@ public class Models {
 
 
     /**
-     * Load registry from JSON.
+     * Load registry from JSON. The models are only parsed when they are first needed, as showing the deck list
+     * doesn't need them and parsing all templates and css takes a while on big collections.
      */
     public void load(String json) {
     	mChanged = false;
-    	mModels = new HashMap<Long, JSONObject>();
-        try {
-        	JSONObject modelarray = new JSONObject(json);
-        	JSONArray ids = modelarray.names();
-        	if (ids != null) {
-            	for (int i = 0; i < ids.length(); i++) {
-            		String id = ids.getString(i);
-            		JSONObject o = modelarray.getJSONObject(id);
-            		mModels.put(o.getLong("id"), o);
-            	}
-        	}
- 		} catch (JSONException e) {
- 			throw new RuntimeException(e);
- 		}
+    	mModels = null;
+    	mJson = json;
+    }
+
+
+    /**
+     * Parse the registry on first access.
+     */
+    private HashMap<Long, JSONObject> models() {
+    	HashMap<Long, JSONObject> models = mModels;
+    	if (models == null) {
+    		synchronized (this) {
+    			models = mModels;
+    			if (models == null) {
+    				models = new HashMap<Long, JSONObject>();
+    				try {
+    					JSONObject modelarray = new JSONObject(mJson);
+    					JSONArray ids = modelarray.names();
+    					if (ids != null) {
+    						for (int i = 0; i < ids.length(); i++) {
+    							String id = ids.getString(i);
+    							JSONObject o = modelarray.getJSONObject(id);
+    							models.put(o.getLong("id"), o);
+    						}
+    					}
+    				} catch (JSONException e) {
+    					throw new RuntimeException(e);
+    				}
+    				mJson = null;
+    				mModels = models;
+    			}
+    		}
+    	}
+    	return models;
     }
 
 
@@ -190,6 +213,8 @@ public class Models {
 			}
     	}
     	mChanged = true;
+    	// cards rendered ahead of time may use the old templates or css
+    	mCol.getRenderCache().clear();
     }
 
     
@@ -200,7 +225,7 @@ public class Models {
     	if (mChanged) {
     		JSONObject array = new JSONObject();
 			try {
-	    		for (Map.Entry<Long, JSONObject> o : mModels.entrySet()) {
+	    		for (Map.Entry<Long, JSONObject> o : models().entrySet()) {
 					array.put(Long.toString(o.getKey()), o.getValue());
 	    		}
 			} catch (JSONException e) {
@@ -231,8 +256,8 @@ public class Models {
 				m = get(mCol.getConf().getLong("curModel"));
 	    	} 
 	    	if (m == null) {
-	    		if (!mModels.isEmpty()) {
-	    			m = mModels.values().iterator().next();
+	    		if (!models().isEmpty()) {
+	    			m = models().values().iterator().next();
 	    		}
 	    	}
 	    	return m;
@@ -254,8 +279,8 @@ public class Models {
 
     /** get model with ID, or none. */
     public JSONObject get(long id) {
-    	if (mModels.containsKey(id)) {
-    		return mModels.get(id);
+    	if (models().containsKey(id)) {
+    		return models().get(id);
     	} else {
     		return null;
     	}
@@ -265,7 +290,7 @@ public class Models {
     /** get all models */
     public ArrayList<JSONObject> all() {
 		ArrayList<JSONObject> models = new ArrayList<JSONObject>();
-		Iterator<JSONObject> it = mModels.values().iterator();
+		Iterator<JSONObject> it = models().values().iterator();
 		while(it.hasNext()) {
 			models.add(it.next());
 		}
@@ -275,7 +300,7 @@ public class Models {
 
     public ArrayList<String> allNAmes() {
 		ArrayList<String> names = new ArrayList<String>();
-		Iterator<JSONObject> it = mModels.values().iterator();
+		Iterator<JSONObject> it = models().values().iterator();
 		while(it.hasNext()) {
 			try {
 				names.add(it.next().getString("name"));
@@ -289,7 +314,7 @@ public class Models {
 
     /** get model with NAME. */
     public JSONObject byName(String name) {
-    	for (JSONObject m : mModels.values()) {
+    	for (JSONObject m : models().values()) {
     		try {
 				if (m.getString("name").equalsIgnoreCase(name)) {
 					return m;
@@ -328,11 +353,11 @@ public class Models {
 			// delete notes/cards
 			mCol.remCards(Utils.arrayList2array(mCol.getDb().queryColumn(Long.class, "SELECT id FROM cards WHERE nid IN (SELECT id FROM notes WHERE mid = " + id + ")", 0)));
 			// then the model
-			mModels.remove(id);
+			models().remove(id);
 			save();
 			// GUI should ensure last model is not deleted
 			if (current) {
-				setCurrent(mModels.values().iterator().next());
+				setCurrent(models().values().iterator().next());
 			}
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
@@ -349,7 +374,7 @@ public class Models {
     /** Add or update an existing model. Used for syncing and merging. */
     public void update(JSONObject m) {
     	try {
-			mModels.put(m.getLong("id"), m);
+			models().put(m.getLong("id"), m);
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
@@ -359,7 +384,7 @@ public class Models {
 
     private void _setID(JSONObject m) {
     	long id = Utils.intNow();
-    	while (mModels.containsKey(id)) {
+    	while (models().containsKey(id)) {
     		id = Utils.intNow();
     	}
     	try {
@@ -370,7 +395,7 @@ public class Models {
     }
 
     public boolean have(long id) {
-    	return mModels.containsKey(id);
+    	return models().containsKey(id);
     }
 
     /**
@@ -601,7 +626,7 @@ public class Models {
 
 
     // not in libanki
-    public Template[] getCmpldTemplate(long modelId, int ord, ArrayList<String> args) {
+    public synchronized Template[] getCmpldTemplate(long modelId, int ord, ArrayList<String> args) {
     	if (args != null && args.size() != 0) {
     		// TODO: cache this for browser too
     		return compileTemplate(modelId, ord, args);
@@ -618,7 +643,7 @@ public class Models {
 
     // not in libanki
     private Template[] compileTemplate(long modelId, int ord, ArrayList<String> args) {
-    	JSONObject model = mModels.get(modelId);
+    	JSONObject model = models().get(modelId);
         JSONObject template;
         Template[] t = new Template[2];
 		try {
@@ -1077,7 +1102,7 @@ public class Models {
 
     public HashMap<Long, HashMap<Integer, String>> getTemplateNames() {
     	HashMap<Long, HashMap<Integer, String>> result = new HashMap<Long, HashMap<Integer, String>>();
-    	for (JSONObject m : mModels.values()) {
+    	for (JSONObject m : models().values()) {
     		JSONArray templates;
 			try {
 				templates = m.getJSONArray("tmpls");
@@ -1111,7 +1136,7 @@ public class Models {
     }
 
     public HashMap<Long, JSONObject> getModels() {
-    	return mModels;
+    	return models();
     }
 
 }
@@ -17,6 +17,7 @@
 package com.ichi2.libanki;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.ichi2.anki.AnkiDroidApp;
@@ -129,9 +130,34 @@ public class Note {
 						new Object[] { mId, mGuId, mMid, mMod, mUsn,
 								tags, joinedFields(), sfld, csum, mFlags, mData });
 		mCol.getTags().register(mTags);
+		// cards rendered ahead of time show the old content
+		mCol.getRenderCache().removeNote(mId);
 		_postFlush();
 	}
 
+	/**
+	 * Insert a new note through a compiled "INSERT INTO notes" statement, as part of a bulk add. Tags are not
+	 * registered, the caller does that once for all notes.
+	 * LIBANKI: not in libanki
+	 */
+	void flushNew(SQLiteStatement insert, long mod, int usn) {
+		mNewlyAdded = true;
+		mMod = mod;
+		mUsn = usn;
+		insert.bindLong(1, mId);
+		insert.bindString(2, mGuId);
+		insert.bindLong(3, mMid);
+		insert.bindLong(4, mMod);
+		insert.bindLong(5, mUsn);
+		insert.bindString(6, stringTags());
+		insert.bindString(7, joinedFields());
+		insert.bindString(8, Utils.stripHTML(mFields[mCol.getModels().sortIdx(mModel)]));
+		insert.bindLong(9, Utils.fieldChecksum(mFields[0]));
+		insert.bindLong(10, mFlags);
+		insert.bindString(11, mData);
+		insert.execute();
+	}
+
 	public String joinedFields() {
 		return Utils.joinFields(mFields);
 	}
@@ -298,6 +324,10 @@ public class Note {
 	/**
 	 * @return the mId
 	 */
+	public long getMod() {
+		return mMod;
+	}
+
 	public long getId() {
 		return mId;
 	}
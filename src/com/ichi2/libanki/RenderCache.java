@@ -0,0 +1,193 @@
+/****************************************************************************************
+ * Copyright (c) 2012 Norbert Nagold <norbert.nagold@gmail.com>                         *
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.util.Log;
+
+import com.ichi2.anki.AnkiDroidApp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bounded cache of rendered question/answer html, filled ahead of time for the cards the scheduler will show next.
+ * Entries are keyed by card id and are only valid as long as the card's deck stays the same. Changes to notes drop the
+ * entries of their cards explicitly, see {@link #removeNote(long)}; the mod time of a note only counts seconds.
+ * Rendering walks the models and the main connection, so it is done under {@link Collection#getLock()}.
+ * LIBANKI: not in libanki
+ */
+public class RenderCache {
+
+    /** Number of rendered cards kept around; a few more than we prefetch, so the current card stays cached */
+    private static final int MAX_ENTRIES = 8;
+
+    private final Collection mCol;
+    private final LinkedHashMap<Long, Entry> mCache;
+    private ExecutorService mExecutor;
+
+
+    private static class Entry {
+        final long mNid;
+        final long mDid;
+        final HashMap<String, String> mQA;
+
+
+        Entry(long nid, long did, HashMap<String, String> qa) {
+            mNid = nid;
+            mDid = did;
+            mQA = qa;
+        }
+    }
+
+
+    public RenderCache(Collection col) {
+        mCol = col;
+        mCache = new LinkedHashMap<Long, Entry>(MAX_ENTRIES + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+
+    /**
+     * Return the cached html of a card or null if it has not been rendered yet, or not for its current deck.
+     */
+    public synchronized HashMap<String, String> get(long cid, long did) {
+        Entry e = mCache.get(cid);
+        if (e == null) {
+            return null;
+        }
+        if (e.mDid != did) {
+            mCache.remove(cid);
+            return null;
+        }
+        return e.mQA;
+    }
+
+
+    public synchronized void put(long cid, long nid, long did, HashMap<String, String> qa) {
+        mCache.put(cid, new Entry(nid, did, qa));
+    }
+
+
+    public synchronized void remove(long cid) {
+        mCache.remove(cid);
+    }
+
+
+    /** Drop the html of all cards of a note. Called whenever the note is written. */
+    public synchronized void removeNote(long nid) {
+        Iterator<Entry> it = mCache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mNid == nid) {
+                it.remove();
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+
+    /**
+     * Render the given cards on the background executor. Cards which are already cached are skipped.
+     */
+    public void prefetch(final List<Long> cids) {
+        if (cids == null || cids.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "RenderCache");
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean first = true;
+                    for (long cid : cids) {
+                        boolean next = first;
+                        first = false;
+                        synchronized (RenderCache.this) {
+                            if (mCache.containsKey(cid) || mExecutor == null) {
+                                continue;
+                            }
+                        }
+                        try {
+                            HashMap<String, String> qa;
+                            boolean autoplay;
+                            // one card at a time, so that a DeckTask waits for one render at most
+                            synchronized (Collection.getLock()) {
+                                synchronized (RenderCache.this) {
+                                    if (mExecutor == null) {
+                                        return;
+                                    }
+                                }
+                                if (mCol.getDb() == null) {
+                                    return;
+                                }
+                                // rendering stores the result in this cache
+                                Card card = mCol.getCard(cid);
+                                qa = card._getQA(false);
+                                autoplay = next && Sound.isAutoplay(mCol, card.getDid());
+                            }
+                            if (autoplay) {
+                                // the card shown next should also start playing its sounds at once
+                                Sound.preloadSounds(cid, Utils.getBaseUrl(mCol.getMedia().getDir()),
+                                        qa.get("q") + qa.get("a"));
+                            }
+                        } catch (RuntimeException e) {
+                            // the collection may have been closed or the card deleted meanwhile
+                            Log.w(AnkiDroidApp.TAG, "RenderCache - could not prefetch card " + cid + ": " + e);
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+
+    /** Stop prefetching and drop all cached html. Called when the collection is closed. */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mCache.clear();
+    }
+}
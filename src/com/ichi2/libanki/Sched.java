@@ -22,6 +22,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Typeface;
 import android.text.SpannableStringBuilder;
 import android.text.style.StyleSpan;
@@ -116,7 +117,16 @@ public class Sched {
 
 	private int mNewCardModulus;
 
-	private double[] mEtaCache = new double[]{-1, -1, -1, -1};
+	// Rolling 7 day window of answer statistics used by eta(), one slot per day (day % ETA_DAYS)
+	private static final int ETA_DAYS = 7;
+	private boolean mEtaLoaded = false;
+	private int[] mEtaDay = new int[ETA_DAYS];
+	private int[] mEtaRevCnt = new int[ETA_DAYS];
+	private int[] mEtaRevYes = new int[ETA_DAYS];
+	private long[] mEtaRevTime = new long[ETA_DAYS];
+	private int[] mEtaLrnCnt = new int[ETA_DAYS];
+	private int[] mEtaLrnYes = new int[ETA_DAYS];
+	private long[] mEtaLrnTime = new long[ETA_DAYS];
 
 	// Queues
 	private LinkedList<long[]> mNewQueue;
@@ -224,6 +234,41 @@ public class Sched {
 		return isLeech;
 	}
 
+	/**
+	 * Ids of cards which are likely to be shown next, taken from the already filled queues without removing them.
+	 * Used to render cards ahead of time, so the result doesn't need to be exact.
+	 * LIBANKI: not in libanki
+	 */
+	public ArrayList<Long> peekCardIds(int limit) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		if (!mHaveQueues) {
+			return ids;
+		}
+		for (long[] item : mLrnQueue) {
+			if (ids.size() >= limit) {
+				return ids;
+			}
+			if (item[0] < mDayCutoff && !ids.contains(item[1])) {
+				ids.add(item[1]);
+			}
+		}
+		_peekQueue(mLrnDayQueue, ids, limit);
+		_peekQueue(mRevQueue, ids, limit);
+		_peekQueue(mNewQueue, ids, limit);
+		return ids;
+	}
+
+	private void _peekQueue(LinkedList<long[]> queue, ArrayList<Long> ids, int limit) {
+		for (long[] item : queue) {
+			if (ids.size() >= limit) {
+				return;
+			}
+			if (!ids.contains(item[0])) {
+				ids.add(item[0]);
+			}
+		}
+	}
+
 	public int[] counts() {
 		return counts(null);
 	}
@@ -370,43 +415,35 @@ public class Sched {
 
 	/** LIBANKI: not in libanki */
 	public int eta(int[] counts) {
-		return eta(counts, true);
+		return eta(counts, false);
 	}
+	/**
+	 * A rough estimate of the time needed to study the given counts, in minutes.
+	 * The answer statistics of the last 7 days are kept in memory and updated on every answer, so the database is
+	 * only read on first use or when reload is true (e.g. after a sync has brought in foreign revlog entries).
+	 */
 	public int eta(int[] counts, boolean reload) {
-		double revYesRate;
-		double revTime;
-		double lrnYesRate;
-		double lrnTime;
-		if (reload || mEtaCache[0] == -1) {
-			Cursor cur = null;
-			try {
-				cur = mCol.getDb().getDatabase().rawQuery("SELECT avg(CASE WHEN ease > 1 THEN 1 ELSE 0 END), avg(time) FROM revlog WHERE type = 1 AND id > " + ((mCol.getSched().getDayCutoff() - (7 * 86400)) * 1000), null);
-				if (!cur.moveToFirst()) {
-					return -1;
-				}
-				revYesRate = cur.getDouble(0);
-				revTime = cur.getDouble(1);
-				cur = mCol.getDb().getDatabase().rawQuery("SELECT avg(CASE WHEN ease = 3 THEN 1 ELSE 0 END), avg(time) FROM revlog WHERE type != 1 AND id > " + ((mCol.getSched().getDayCutoff() - (7 * 86400)) * 1000), null);
-				if (!cur.moveToFirst()) {
-					return -1;
-				}
-				lrnYesRate = cur.getDouble(0);
-				lrnTime = cur.getDouble(1);
-			} finally {
-				if (cur != null && !cur.isClosed()) {
-					cur.close();
-				}
-			}
-			mEtaCache[0] = revYesRate;
-			mEtaCache[1] = revTime;
-			mEtaCache[2] = lrnYesRate;
-			mEtaCache[3] = lrnTime;
-		} else {
-			revYesRate = mEtaCache[0];
-			revTime = mEtaCache[1];
-			lrnYesRate = mEtaCache[2];
-			lrnTime = mEtaCache[3];			
-		}
+		if (reload || !mEtaLoaded) {
+			_loadEtaStats();
+		}
+		int revCnt = 0;
+		int revYes = 0;
+		long revTimeSum = 0;
+		int lrnCnt = 0;
+		int lrnYes = 0;
+		long lrnTimeSum = 0;
+		for (int i = 0; i < ETA_DAYS; i++) {
+			revCnt += mEtaRevCnt[i];
+			revYes += mEtaRevYes[i];
+			revTimeSum += mEtaRevTime[i];
+			lrnCnt += mEtaLrnCnt[i];
+			lrnYes += mEtaLrnYes[i];
+			lrnTimeSum += mEtaLrnTime[i];
+		}
+		double revYesRate = revCnt == 0 ? 0 : (double) revYes / revCnt;
+		double revTime = revCnt == 0 ? 0 : (double) revTimeSum / revCnt;
+		double lrnYesRate = lrnCnt == 0 ? 0 : (double) lrnYes / lrnCnt;
+		double lrnTime = lrnCnt == 0 ? 0 : (double) lrnTimeSum / lrnCnt;
 		// rev cards
 		double eta = revTime * counts[2];
 		// lrn cards
@@ -416,6 +453,77 @@ public class Sched {
 		return (int) (eta / 60000);
 	}
 
+	/** Fill the eta window from the revlog entries of the last 7 days, bucketed per day. */
+	private void _loadEtaStats() {
+		for (int i = 0; i < ETA_DAYS; i++) {
+			_clearEtaSlot(i, mToday - ((mToday - i) % ETA_DAYS + ETA_DAYS) % ETA_DAYS);
+		}
+		long start = mDayCutoff - (ETA_DAYS * 86400);
+		Cursor cur = null;
+		try {
+			cur = mCol.getDb().getDatabase().rawQuery("SELECT (id / 1000 - " + start + ") / 86400, type = 1, count(), " +
+					"sum(CASE WHEN type = 1 AND ease > 1 THEN 1 WHEN type != 1 AND ease = 3 THEN 1 ELSE 0 END), sum(time) " +
+					"FROM revlog WHERE id > " + (start * 1000) + " GROUP BY 1, 2", null);
+			while (cur.moveToNext()) {
+				int day = mToday - (ETA_DAYS - 1) + Math.min(cur.getInt(0), ETA_DAYS - 1);
+				_addEtaStats(day, cur.getInt(1) != 0, cur.getInt(2), cur.getInt(3), cur.getLong(4));
+			}
+		} finally {
+			if (cur != null && !cur.isClosed()) {
+				cur.close();
+			}
+		}
+		mEtaLoaded = true;
+	}
+
+	private void _clearEtaSlot(int slot, int day) {
+		mEtaDay[slot] = day;
+		mEtaRevCnt[slot] = 0;
+		mEtaRevYes[slot] = 0;
+		mEtaRevTime[slot] = 0;
+		mEtaLrnCnt[slot] = 0;
+		mEtaLrnYes[slot] = 0;
+		mEtaLrnTime[slot] = 0;
+	}
+
+	/** Drop the days which have left the eta window. Called whenever the day cutoff is updated. */
+	private void _rollEtaStats() {
+		for (int i = 0; i < ETA_DAYS; i++) {
+			if (mEtaDay[i] <= mToday - ETA_DAYS) {
+				_clearEtaSlot(i, mToday - ((mToday - i) % ETA_DAYS + ETA_DAYS) % ETA_DAYS);
+			}
+		}
+	}
+
+	private void _addEtaStats(int day, boolean rev, int cnt, int yes, long time) {
+		if (day <= mToday - ETA_DAYS || day > mToday) {
+			return;
+		}
+		int slot = ((day % ETA_DAYS) + ETA_DAYS) % ETA_DAYS;
+		if (mEtaDay[slot] != day) {
+			_clearEtaSlot(slot, day);
+		}
+		if (rev) {
+			mEtaRevCnt[slot] += cnt;
+			mEtaRevYes[slot] += yes;
+			mEtaRevTime[slot] += time;
+		} else {
+			mEtaLrnCnt[slot] += cnt;
+			mEtaLrnYes[slot] += yes;
+			mEtaLrnTime[slot] += time;
+		}
+	}
+
+	/** Account for a revlog entry in the eta window; a negative sign removes it again (used by undo). */
+	public void _updateEtaStats(int ease, int time, int type, int sign) {
+		if (!mEtaLoaded) {
+			return;
+		}
+		boolean rev = type == 1;
+		boolean yes = rev ? ease > 1 : ease == 3;
+		_addEtaStats(mToday, rev, sign, yes ? sign : 0, sign * (long) time);
+	}
+
 	private int _walkingCount() {
 		return _walkingCount(null, null, null);
 	}
@@ -1277,12 +1385,15 @@ public class Sched {
 	private void log(long id, int usn, int ease, int ivl, int lastIvl,
 			int factor, int timeTaken, int type) {
 		try {
+			long logId = Utils.intNow(1000);
 			mCol.getDb()
 					.getDatabase()
 					.execSQL(
 							"INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-							new Object[] { Utils.now() * 1000, id, usn, ease,
+							new Object[] { logId, id, usn, ease,
 									ivl, lastIvl, factor, timeTaken, type });
+			mCol.markReviewLogged(logId, ease, timeTaken, type);
+			_updateEtaStats(ease, timeTaken, type, 1);
 		} catch (SQLiteConstraintException e) {
 			try {
 				Thread.sleep(10);
@@ -1309,7 +1420,7 @@ public class Sched {
 	private void removeFailed(long[] ids, boolean expiredOnly) {
 		String extra;
 		if (ids != null && ids.length > 0) {
-			extra = " AND id IN " + Utils.ids2str(ids);
+			extra = " AND id IN " + mCol.getDb().idSet("failedcids", ids);
 		} else {
 			// benchmarks indicate it's about 10x faster to search all decks with the index than scan the table
 			extra = " AND did IN " + Utils.ids2str(mCol.getDecks().allIds());
@@ -1660,7 +1771,7 @@ public class Sched {
 		// gather card ids and sort
 		String order = _dynOrder(deck);
 		String limit;
-		ArrayList<Long> ids;
+		String sql;
 		String search;
 		try {
 			limit = " LIMIT " + deck.getInt("limit");
@@ -1669,12 +1780,15 @@ public class Sched {
 			throw new RuntimeException(e);
 		}
 		try {
-			ids = mCol.findCards(search, order + limit);			
+			// DIFFERS FROM LIBANKI: the found ids are not loaded but moved by sql directly
+			sql = new Finder(mCol).findCardsSql(search, false, order + limit);
 		} catch (RuntimeException e) {
-			ids = new ArrayList<Long>();
+			sql = null;
 		}
 		// move the cards over
-		_moveToDyn(did, ids);
+		if (sql != null) {
+			_moveToDyn(did, sql);
+		}
 		// and change to our new deck
 		mCol.getDecks().select(did);
 	}
@@ -1691,7 +1805,7 @@ public class Sched {
 	}
 
 	public void remFromDyn(long[] cids) {
-		remDyn(0, "id IN " + Utils.ids2str(cids) + " AND odid");
+		remDyn(0, "id IN " + mCol.getDb().idSet("dyncids", cids) + " AND odid");
 	}
 
 	private String _dynOrder(JSONObject deck) {
@@ -1723,28 +1837,44 @@ public class Sched {
 		}
 	}
 
-	private void _moveToDyn(long did, ArrayList<Long> ids) {
+	/**
+	 * Move the cards selected by the sql query into the dynamic deck, keeping the order of the query.
+	 * The ids are collected in a temporary table whose rowids give the due numbers, so all cards are moved with a
+	 * single update.
+	 */
+	private void _moveToDyn(long did, String sql) {
 		JSONObject deck = mCol.getDecks().get(did);
-		ArrayList<Object[]> data = new ArrayList<Object[]>();
-		long t = Utils.intNow();
-		int u = mCol.usn();
-		for (long c = 0; c < ids.size(); c++) {
-			// start at -100000 so that reviews are all due
-			data.add(new Object[]{did, -100000 + c, t, u, ids.get((int)c)});
-		}
-		String queue;
+		SQLiteDatabase db = mCol.getDb().getDatabase();
+		db.execSQL("CREATE TEMP TABLE IF NOT EXISTS dyncards (pos INTEGER PRIMARY KEY, id INTEGER NOT NULL)");
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS temp.ix_dyncards_id ON dyncards (id)");
+		db.execSQL("DELETE FROM dyncards");
 		try {
-			if (deck.getBoolean("cramRev")) {
-				// everything in the new queue
-				queue = "0";
-			} else {
-				// due reviews stay in the review queue. careful: can't use "odid or did", as sqlite converts to boolean
-				queue = "(CASE WHEN type = 2 AND (CASE WHEN odue THEN odue <= " + mToday + " ELSE due <= " + mToday + " END) THEN 2 ELSE 0 END)";
+			try {
+				// rowids are assigned in the order of the query, starting at 1 for the emptied table
+				db.execSQL("INSERT INTO dyncards (id) " + sql);
+			} catch (SQLException e) {
+				// an invalid search leaves the deck empty, as libanki does
+				Log.e(AnkiDroidApp.TAG, "_moveToDyn: search failed: " + e);
+				return;
 			}
-		} catch (JSONException e) {
-			throw new RuntimeException(e);
+			String queue;
+			try {
+				if (deck.getBoolean("cramRev")) {
+					// everything in the new queue
+					queue = "0";
+				} else {
+					// due reviews stay in the review queue. careful: can't use "odid or did", as sqlite converts to boolean
+					queue = "(CASE WHEN type = 2 AND (CASE WHEN odue THEN odue <= " + mToday + " ELSE due <= " + mToday + " END) THEN 2 ELSE 0 END)";
+				}
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			// start at -100000 so that reviews are all due
+			mCol.getDb().execute("UPDATE cards SET odid = (CASE WHEN odid THEN odid ELSE did END), odue = (CASE WHEN odue THEN odue ELSE due END), did = ?, queue = " + queue + ", due = -100001 + (SELECT pos FROM dyncards WHERE dyncards.id = cards.id), mod = ?, usn = ? WHERE id IN (SELECT id FROM dyncards)",
+					new Object[]{did, Utils.intNow(), mCol.usn()});
+		} finally {
+			db.execSQL("DELETE FROM dyncards");
 		}
-		mCol.getDb().executeMany("UPDATE cards SET odid = (CASE WHEN odid THEN odid ELSE did END), odue = (CASE WHEN odue THEN odue ELSE due END), did = ?, queue = " + queue + ", due = ?, mod = ?, usn = ? WHERE id = ?", data);
 	}
 
 	private int _dynIvlBoost(Card card) {
@@ -1905,6 +2035,7 @@ public class Sched {
 		mToday = (int) ((Utils.now() - mCol.getCrt()) / 86400);
 		// end of day cutoff
 		mDayCutoff = mCol.getCrt() + ((mToday + 1) * 86400);
+		_rollEtaStats();
 
 		// this differs from libanki: updates all decks
 		for (JSONObject d : mCol.getDecks().all()) {
@@ -2088,7 +2219,7 @@ public class Sched {
 		removeFailed(ids);
 		mCol.getDb().execute("UPDATE cards SET queue = -1, mod = " + Utils.intNow()
 								+ ", usn = " + mCol.usn() + " WHERE id IN "
-								+ Utils.ids2str(ids));
+								+ mCol.getDb().idSet("suspendcids", ids));
 	}
 
 	/**
@@ -2099,7 +2230,7 @@ public class Sched {
 						"UPDATE cards SET queue = type, mod = "
 								+ Utils.intNow() + ", usn = " + mCol.usn()
 								+ " WHERE queue = -1 AND id IN "
-								+ Utils.ids2str(ids));
+								+ mCol.getDb().idSet("suspendcids", ids));
 	}
 
 	/**
@@ -2317,7 +2448,7 @@ public class Sched {
 
 	/** Put cards at the end of the new queue. */
 	public void forgetCards(long[] ids) {
-		mCol.getDb().execute("update cards set type=0,queue=0,ivl=0 where id in " + Utils.ids2str(ids));
+		mCol.getDb().execute("update cards set type=0,queue=0,ivl=0 where id in " + mCol.getDb().idSet("forgetcids", ids));
 		int pmax = mCol.getDb().queryScalar("SELECT max(due) FROM cards WHERE type=0", false);
 		// takes care of mod + usn
 		sortCards(ids, pmax + 1);
@@ -2352,7 +2483,7 @@ public class Sched {
 		sortCards(cids, start, 1, false, false);
 	}
  	public void sortCards(long[] cids, int start, int step, boolean shuffle, boolean shift) {
-		String scids = Utils.ids2str(cids);
+		String scids = mCol.getDb().idSet("sortcids", cids);
 		long now = Utils.intNow();
 		ArrayList<Long> nids = mCol.getDb().queryColumn(Long.class, "SELECT DISTINCT nid FROM cards WHERE type = 0 AND id IN " + scids + " ORDER BY nid", 0);
 		if (nids.size() == 0) {
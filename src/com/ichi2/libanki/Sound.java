@@ -19,6 +19,13 @@ package com.ichi2.libanki;
 import java.io.File;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.media.AudioManager;
 import android.media.MediaPlayer;
@@ -32,6 +39,7 @@ import java.util.regex.Pattern;
 
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.ReadText;
+import com.ichi2.utils.HtmlFilterChain;
 
 /**
  * Class used to parse, load and play sound files on AnkiDroid.
@@ -43,11 +51,55 @@ public class Sound {
      */
     public static Pattern sSoundPattern = Pattern.compile("\\[sound\\:([^\\[\\]]*)\\]");
 
+    /** Html of the play button, around the sound path */
+    private static final String PLAY_LINK_START = "<a onclick=\"window.interface.playSound(this.title);\" title=\"";
+    private static final String PLAY_LINK_END = "\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>";
+
     /**
      * Media player used to play the sounds
      */
     private static MediaPlayer sMediaPlayer;
 
+    /** Number of prepared players kept around for upcoming sounds */
+    private static final int PRELOAD_POOL_SIZE = 4;
+
+    /**
+     * Players which have already been prepared for a sound, by sound path, oldest first. Preparing a player takes a
+     * noticeable time, so the sounds of the current and the next card are prepared in the background.
+     */
+    private static final LinkedHashMap<String, Preloaded> sPreloaded = new LinkedHashMap<String, Preloaded>(
+            PRELOAD_POOL_SIZE + 1, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Preloaded> eldest) {
+            if (size() > PRELOAD_POOL_SIZE) {
+                eldest.getValue().mPlayer.release();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static ExecutorService sPreloadExecutor;
+
+    /** Whether sounds are played as soon as a card side is shown, see {@link #setAutoplay(boolean)} */
+    private static volatile boolean sAutoplay = false;
+
+
+    private static final class Preloaded {
+        /** The cards waiting for the sound; the player is released once none of them will be shown anymore */
+        final HashSet<Long> mCids = new HashSet<Long>();
+        final MediaPlayer mPlayer;
+
+
+        Preloaded(long cid, MediaPlayer player) {
+            mCids.add(cid);
+            mPlayer = player;
+        }
+    }
+
     /**
      * Stores sounds for the current card, key is for question/answer
      */
@@ -62,57 +114,205 @@ public class Sound {
     }
 
     public static String parseSounds(String soundDir, String content, boolean ttsEnabled, int qa) {
-    	boolean soundAvailable = false;
-        StringBuilder stringBuilder = new StringBuilder();
-        String contentLeft = content;
+        SoundFilter filter = new SoundFilter(soundDir, qa);
+        String result = new HtmlFilterChain(filter).apply(content);
+        if (!filter.soundFound() && ttsEnabled) {
+            result = addTtsLink(result, qa);
+        }
+        return result;
+    }
 
-        Log.i(AnkiDroidApp.TAG, "parseSounds");
 
-        Matcher matcher = sSoundPattern.matcher(content);
-        // While there is matches of the pattern for sound markers
-        while (matcher.find()) {
-        	soundAvailable = true;
-            // Get the sound file name
-            String sound = matcher.group(1);
+    /**
+     * Filter replacing sound markers with play links and storing the sound paths for the given card side. Call
+     * {@link #clearFound()} before a card is filtered.
+     */
+    public static class SoundFilter implements HtmlFilterChain.Filter {
+        private final String mSoundDir;
+        private final int mQa;
+        /** Whether the sound paths are stored for {@link Sound#playSounds(int)} */
+        private final boolean mStore;
+        private boolean mFound = false;
+
+
+        public SoundFilter(String soundDir, int qa) {
+            this(soundDir, qa, true);
+        }
+
+
+        /**
+         * @param store False for cards which are not shown yet, whose sounds must not replace the ones of the shown card
+         */
+        public SoundFilter(String soundDir, int qa, boolean store) {
+            mSoundDir = soundDir;
+            mQa = qa;
+            mStore = store;
+        }
+
+
+        @Override
+        public String pattern() {
+            return sSoundPattern.pattern();
+        }
+
 
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            mFound = true;
             // Construct the sound path and store it
-            String soundPath = soundDir + Uri.encode(sound);
-            
-            // Create appropiate list if needed
-            if (!sSoundPaths.containsKey(qa)) {
-                sSoundPaths.put(qa, new ArrayList<String>());
+            String soundPath = mSoundDir + Uri.encode(m.group(group + 1));
+            if (mStore) {
+                // Create appropiate list if needed
+                if (!sSoundPaths.containsKey(mQa)) {
+                    sSoundPaths.put(mQa, new ArrayList<String>());
+                }
+                sSoundPaths.get(mQa).add(soundPath);
             }
+            // and replace the marker by the play button
+            out.append(PLAY_LINK_START).append(soundPath).append(PLAY_LINK_END);
+        }
 
-            sSoundPaths.get(qa).add(soundPath);
 
-            // Construct the new content, appending the substring from the beginning of the content left until the
-            // beginning of the sound marker
-            // and then appending the html code to add the play button
-            String soundMarker = matcher.group();
-            int markerStart = contentLeft.indexOf(soundMarker);
-            stringBuilder.append(contentLeft.substring(0, markerStart));        
-            stringBuilder
-                .append("<a onclick=\"window.interface.playSound(this.title);\" title=\""
-                        + soundPath
-                        + "\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
-            contentLeft = contentLeft.substring(markerStart + soundMarker.length());
-            Log.i(AnkiDroidApp.TAG, "Content left = " + contentLeft);
+        /** Whether a sound marker was found since the last call to {@link #clearFound()} */
+        public boolean soundFound() {
+            return mFound;
         }
-        if (!soundAvailable && ttsEnabled && !ReadText.getLanguage(qa).equals(ReadText.NO_TTS)) {
-            stringBuilder.append(content.substring(0, content.length() - 9));        
-            stringBuilder
-                .append("<a onclick=\"window.interface.playSound(this.title);\" title=\"tts" + Integer.toString(qa)
-                		+ Utils.stripHTML(content)
-                        + "\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
-            contentLeft = "</p>";
+
+
+        public void clearFound() {
+            mFound = false;
         }
+    }
 
-        stringBuilder.append(contentLeft);
 
+    /**
+     * Add a button reading the content with text to speech, for cards without sounds.
+     */
+    public static String addTtsLink(String content, int qa) {
+        if (ReadText.getLanguage(qa).equals(ReadText.NO_TTS)) {
+            return content;
+        }
+        StringBuilder stringBuilder = new StringBuilder(content.length() * 2 + 256);
+        stringBuilder.append(content, 0, content.length() - 9);
+        stringBuilder.append(PLAY_LINK_START).append("tts").append(qa).append(Utils.stripHTML(content))
+                .append(PLAY_LINK_END);
+        stringBuilder.append("</p>");
         return stringBuilder.toString();
     }
 
 
+    /**
+     * Set whether the reviewer plays the sounds of a card side as soon as it is shown, rather than when asked to.
+     */
+    public static void setAutoplay(boolean autoplay) {
+        sAutoplay = autoplay;
+    }
+
+
+    /**
+     * Whether the sounds of the cards of a deck are played as soon as a side is shown. Preparing players ahead of
+     * time is only worth it then.
+     */
+    public static boolean isAutoplay(Collection col, long did) {
+        if (!sAutoplay) {
+            return false;
+        }
+        // dynamic decks have no own setting
+        return col.getDecks().confForDid(did).optBoolean("autoplay", true);
+    }
+
+
+    /**
+     * Prepare players for the sounds of a card on a background thread, so that playing them starts at once. Should
+     * only be called if {@link #isAutoplay(Collection, long)}.
+     * @param cid The card the sounds belong to, see {@link #evictSounds(long)}
+     * @param soundDir The base url of the media directory
+     * @param html The rendered question and answer of the card, still containing the sound markers
+     */
+    public static void preloadSounds(final long cid, final String soundDir, String html) {
+        final ArrayList<String> paths = new ArrayList<String>();
+        Matcher matcher = sSoundPattern.matcher(html);
+        while (matcher.find() && paths.size() < PRELOAD_POOL_SIZE) {
+            paths.add(soundDir + Uri.encode(matcher.group(1)));
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        synchronized (sPreloaded) {
+            if (sPreloadExecutor == null) {
+                sPreloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Sound preload");
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        sPreloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    synchronized (sPreloaded) {
+                        Preloaded preloaded = sPreloaded.get(path);
+                        if (preloaded != null) {
+                            preloaded.mCids.add(cid);
+                            continue;
+                        }
+                    }
+                    MediaPlayer player = new MediaPlayer();
+                    try {
+                        preparePlayer(player, path);
+                    } catch (Exception e) {
+                        Log.w(AnkiDroidApp.TAG, "preloadSounds - could not prepare " + path + ": " + e.getMessage());
+                        player.release();
+                        continue;
+                    }
+                    synchronized (sPreloaded) {
+                        Preloaded preloaded = sPreloaded.get(path);
+                        if (preloaded != null) {
+                            // prepared meanwhile by a call which was sharing the sound
+                            preloaded.mCids.add(cid);
+                            player.release();
+                        } else {
+                            sPreloaded.put(path, new Preloaded(cid, player));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Release the prepared players of a card which will not be shown anymore, unless another card waits for the same
+     * sound.
+     */
+    public static void evictSounds(long cid) {
+        synchronized (sPreloaded) {
+            Iterator<Preloaded> it = sPreloaded.values().iterator();
+            while (it.hasNext()) {
+                Preloaded p = it.next();
+                if (p.mCids.remove(cid) && p.mCids.isEmpty()) {
+                    p.mPlayer.release();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    private static void preparePlayer(MediaPlayer player, String soundPath) throws Exception {
+        // soundPath is usually an URI, but Media player requires a path not url encoded
+        URI soundURI = new URI(soundPath);
+        player.setDataSource(new File(soundURI).getAbsolutePath());
+        player.setVolume(AudioManager.STREAM_MUSIC, AudioManager.STREAM_MUSIC);
+        player.prepare();
+    }
+
+
     /**
      * Plays the sounds for the given card side
      */
@@ -132,18 +332,26 @@ public class Sound {
         if (soundPath.substring(0, 3).equals("tts")) {
         	ReadText.textToSpeech(soundPath.substring(4, soundPath.length()), Integer.parseInt(soundPath.substring(3, 4)));
         } else {
-            if (sMediaPlayer == null)
+            Preloaded preloaded;
+            synchronized (sPreloaded) {
+                preloaded = sPreloaded.remove(soundPath);
+            }
+            if (preloaded != null) {
+                // already prepared, a player is only used once
+                if (sMediaPlayer != null) {
+                    sMediaPlayer.release();
+                }
+                sMediaPlayer = preloaded.mPlayer;
+            } else if (sMediaPlayer == null) {
                 sMediaPlayer = new MediaPlayer();
-            else
+            } else {
                 sMediaPlayer.reset();
+            }
 
     	    try {
-    	        // soundPath is usually an URI, but Media player requires a path not url encoded
-                URI soundURI = new URI(soundPath);
-                soundPath = new File(soundURI).getAbsolutePath();
-                sMediaPlayer.setDataSource(soundPath);
-                sMediaPlayer.setVolume(AudioManager.STREAM_MUSIC, AudioManager.STREAM_MUSIC);
-                sMediaPlayer.prepare();
+    	        if (preloaded == null) {
+    	            preparePlayer(sMediaPlayer, soundPath);
+    	        }
                 if (playAllListener != null)
                     sMediaPlayer.setOnCompletionListener(playAllListener);
 
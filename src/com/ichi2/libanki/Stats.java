@@ -56,9 +56,33 @@ public class Stats {
     private int[] mColors;
     private int[] mAxisTitles;
 
+    /** What the queries need from the scheduler and the decks, taken when the statistics are created */
+    private int mToday;
+    private long mDayCutoff;
+    private String mLimit;
+    private String mRevlogLimit;
+    private String mDeckName;
+
+    /**
+     * The statistics are computed outside of the collection lock, on the read connection, so the state shared with
+     * the scheduler and the decks is copied here once, under the lock.
+     */
     public Stats(Collection col, boolean wholeCollection) {
     	mCol = col;
     	mWholeCollection = wholeCollection;
+    	synchronized (Collection.getLock()) {
+    		mToday = col.getSched().getToday();
+    		mDayCutoff = col.getSched().getDayCutoff();
+    		mLimit = _limit();
+    		mRevlogLimit = _revlogLimit();
+    		if (!wholeCollection) {
+    			try {
+    				mDeckName = col.getDecks().current().getString("name");
+    			} catch (JSONException e) {
+    				throw new RuntimeException(e);
+    			}
+    		}
+    	}
     	sCurrentInstance = this;
     }
 
@@ -75,11 +99,7 @@ public class Stats {
     	if (mWholeCollection) {
     		title = AnkiDroidApp.getInstance().getResources().getString(R.string.card_browser_all_decks);
     	} else {
-    		try {
-				title = mCol.getDecks().current().getString("name");
-			} catch (JSONException e) {
-				throw new RuntimeException(e);
-			}
+    		title = mDeckName;
     	}
     	return new Object[] {mType, mTitle, mBackwards, mValueLabels, mColors, mAxisTitles, title};
     }
@@ -116,16 +136,21 @@ public class Stats {
             lim += " AND day <= " + end;
         }
 
-        ArrayList<int[]> dues = new ArrayList<int[]>();
+        double[][] dues;
+        int count = 1;
         Cursor cur = null;
         try {
-            cur = mCol.getDb().getDatabase().rawQuery(
-                    "SELECT (due - " + mCol.getSched().getToday() + ")/" + chunk + " AS day, " // day
+            cur = mCol.getDb().getReadDatabase().rawQuery(
+                    "SELECT (due - " + mToday + ")/" + chunk + " AS day, " // day
                             + "count(), " // all cards
                             + "sum(CASE WHEN ivl >= 21 THEN 1 ELSE 0 END) " // mature cards
-                            + "FROM cards WHERE did IN " + _limit() + " AND queue = 2" + lim + " GROUP BY day ORDER BY day", null);
+                            + "FROM cards WHERE did IN " + mLimit + " AND queue = 2" + lim + " GROUP BY day ORDER BY day", null);
+            dues = _newSeries(3, cur.getCount());
             while (cur.moveToNext()) {
-                dues.add(new int[] { cur.getInt(0), cur.getInt(1), cur.getInt(2) });
+                dues[0][count] = cur.getInt(0);
+                dues[1][count] = cur.getInt(1);
+                dues[2][count] = cur.getInt(2);
+                count++;
             }
         } finally {
             if (cur != null && !cur.isClosed()) {
@@ -133,40 +158,41 @@ public class Stats {
             }
         }
         // small adjustment for a proper chartbuilding with achartengine
-        if (dues.size() == 0 || dues.get(0)[0] > 0) {
-        	dues.add(0, new int[]{0, 0, 0});
+        int first = 1;
+        if (count == 1 || dues[0][1] > 0) {
+        	first = 0;
         }
-        if (end == -1 && dues.size() < 2) {
+        if (end == -1 && count - first < 2) {
         	end = 31;
         }
-        if (type != TYPE_LIFE && dues.get(dues.size() - 1)[0] < end) {
-        	dues.add(new int[]{end, 0, 0});
-        } else if (type == TYPE_LIFE && dues.size() < 2) {
-        	dues.add(new int[]{Math.max(12, dues.get(dues.size() - 1)[0] + 1), 0, 0});
+        if (type != TYPE_LIFE && dues[0][count - 1] < end) {
+        	dues[0][count++] = end;
+        } else if (type == TYPE_LIFE && count - first < 2) {
+        	dues[0][count] = Math.max(12, dues[0][count - 1] + 1);
+        	count++;
         }
 
-        mSeriesList = new double[3][dues.size()];
-        for (int i = 0; i < dues.size(); i++) {
-        	int[] data = dues.get(i);
-        	mSeriesList[0][i] = data[0];
-        	mSeriesList[1][i] = data[1];
-        	mSeriesList[2][i] = data[2];
-        }
-        return dues.size() > 0;
+        mSeriesList = _trimSeries(dues, first, count);
+        return count > first;
     }
 
     /* only needed for studyoptions small chart */
     public static double[][] getSmallDueStats(Collection col) {
-        ArrayList<int[]> dues = new ArrayList<int[]>();
+        double[][] dues;
+        int count = 1;
         Cursor cur = null;
         try {
-            cur = col.getDb().getDatabase().rawQuery(
+            cur = col.getDb().getReadDatabase().rawQuery(
                     "SELECT (due - " + col.getSched().getToday() + ") AS day, " // day
                             + "count(), " // all cards
                             + "sum(CASE WHEN ivl >= 21 THEN 1 ELSE 0 END) " // mature cards
                             + "FROM cards WHERE did IN " + col.getSched()._deckLimit() + " AND queue = 2 AND day <= 7 GROUP BY day ORDER BY day", null);
+            dues = _newSeries(3, cur.getCount());
             while (cur.moveToNext()) {
-                dues.add(new int[] { cur.getInt(0), cur.getInt(1), cur.getInt(2) });
+                dues[0][count] = cur.getInt(0);
+                dues[1][count] = cur.getInt(1);
+                dues[2][count] = cur.getInt(2);
+                count++;
             }
         } finally {
             if (cur != null && !cur.isClosed()) {
@@ -174,20 +200,14 @@ public class Stats {
             }
         }
         // small adjustment for a proper chartbuilding with achartengine
-        if (dues.size() == 0 || dues.get(0)[0] > 0) {
-        	dues.add(0, new int[]{0, 0, 0});
-        }
-        if (dues.get(dues.size() - 1)[0] < 7) {
-        	dues.add(new int[]{7, 0, 0});
+        int first = 1;
+        if (count == 1 || dues[0][1] > 0) {
+        	first = 0;
         }
-        double[][] serieslist = new double[3][dues.size()];
-        for (int i = 0; i < dues.size(); i++) {
-        	int[] data = dues.get(i);
-        	serieslist[0][i] = data[0];
-        	serieslist[1][i] = data[1];
-        	serieslist[2][i] = data[2];
+        if (dues[0][count - 1] < 7) {
+        	dues[0][count++] = 7;
         }
-        return serieslist;
+        return _trimSeries(dues, first, count);
     }
     /**
      * Reps and time spent
@@ -223,9 +243,9 @@ public class Stats {
     	}
     	ArrayList<String> lims = new ArrayList<String>();
     	if (num != -1) {
-    		lims.add("id > " + ((mCol.getSched().getDayCutoff() - ((num + 1)*chunk*86400)) * 1000));
+    		lims.add("id > " + ((mDayCutoff - ((num + 1)*chunk*86400)) * 1000));
     	}
-    	String lim = _revlogLimit().replaceAll("[\\[\\]]", "");
+    	String lim = mRevlogLimit.replaceAll("[\\[\\]]", "");
     	if (lim.length() > 0) {
     		lims.add(lim);
     	}
@@ -253,19 +273,32 @@ public class Stats {
     		ti = "1";
     		tf = "";
     	}
-        ArrayList<double[]> list = new ArrayList<double[]>();
+        double[][] done;
+        int count = 1;
         Cursor cur = null;
         try {
-            cur = mCol.getDb().getDatabase().rawQuery(
-                    "SELECT (cast((id/1000 - " + mCol.getSched().getDayCutoff() + ") / 86400.0 AS INT))/" + chunk + " AS day, "
+            cur = mCol.getDb().getReadDatabase().rawQuery(
+                    "SELECT (cast((id/1000 - " + mDayCutoff + ") / 86400.0 AS INT))/" + chunk + " AS day, "
                     		+ "sum(CASE WHEN type = 0 THEN " + ti + " ELSE 0 END)" + tf + ", " // lrn
                     		+ "sum(CASE WHEN type = 1 AND lastIvl < 21 THEN " + ti + " ELSE 0 END)" + tf + ", " // yng
                     		+ "sum(CASE WHEN type = 1 AND lastIvl >= 21 THEN " + ti + " ELSE 0 END)" + tf + ", " // mtr
                     		+ "sum(CASE WHEN type = 2 THEN " + ti + " ELSE 0 END)" + tf + ", " // lapse
                     		+ "sum(CASE WHEN type = 3 THEN " + ti + " ELSE 0 END)" + tf // cram
                             + " FROM revlog " + lim + " GROUP BY day ORDER BY day", null);
+            done = _newSeries(6, cur.getCount());
             while (cur.moveToNext()) {
-            	list.add(new double[] { cur.getDouble(0), cur.getDouble(1), cur.getDouble(4), cur.getDouble(2), cur.getDouble(3), cur.getDouble(5) });
+                // the bars are stacked, so each series holds its own value plus all the ones drawn on top of it
+                double cram = cur.getDouble(5);
+                double mature = cur.getDouble(3) + cram;
+                double young = cur.getDouble(2) + mature;
+                double relearn = cur.getDouble(4) + young;
+                done[0][count] = cur.getDouble(0); // day
+                done[1][count] = cur.getDouble(1) + relearn; // lrn
+                done[2][count] = relearn;
+                done[3][count] = young;
+                done[4][count] = mature;
+                done[5][count] = cram;
+                count++;
             }
         } finally {
             if (cur != null && !cur.isClosed()) {
@@ -274,26 +307,20 @@ public class Stats {
         }
 
         // small adjustment for a proper chartbuilding with achartengine
-        if (type != TYPE_LIFE && (list.size() == 0 || list.get(0)[0] > -num)) {
-        	list.add(0, new double[]{-num, 0, 0, 0, 0, 0});
-        } else if (type == TYPE_LIFE && list.size() == 0) {
-        	list.add(0, new double[]{-12, 0, 0, 0, 0, 0});
+        int first = 1;
+        if (type != TYPE_LIFE && (count == 1 || done[0][1] > -num)) {
+        	done[0][0] = -num;
+        	first = 0;
+        } else if (type == TYPE_LIFE && count == 1) {
+        	done[0][0] = -12;
+        	first = 0;
         }
-        if (list.get(list.size() - 1)[0] < 0) {
-        	list.add(new double[]{0, 0, 0, 0, 0, 0});
+        if (done[0][count - 1] < 0) {
+        	done[0][count++] = 0;
         }
 
-        mSeriesList = new double[6][list.size()];
-        for (int i = 0; i < list.size(); i++) {
-        	double[] data = list.get(i);
-        	mSeriesList[0][i] = data[0]; // day
-        	mSeriesList[1][i] = data[1] + data[2] + data[3] + data[4] + data[5]; // lrn
-        	mSeriesList[2][i] = data[2] + data[3] + data[4] + data[5]; // relearn
-        	mSeriesList[3][i] = data[3] + data[4] + data[5]; // young
-        	mSeriesList[4][i] = data[4] + data[5]; // mature
-        	mSeriesList[5][i] = data[5]; // cram
-        }
-        return list.size() > 0;
+        mSeriesList = _trimSeries(done, first, count);
+        return count > first;
     }
 
 
@@ -324,6 +351,31 @@ public class Stats {
      * Tools ***********************************************************************************************
      */
 
+    /**
+     * Allocate the series for the rows of an aggregate query. Rows are stored from index 1 on, which leaves a zeroed
+     * slot in front of and one behind them for the padding entries achartengine needs to lay out the bars.
+     */
+    private static double[][] _newSeries(int series, int rows) {
+        return new double[series][rows + 2];
+    }
+
+
+    /**
+     * Return the entries from first to end of each series, in arrays of exactly that length.
+     */
+    private static double[][] _trimSeries(double[][] series, int first, int end) {
+        int length = end - first;
+        if (first == 0 && length == series[0].length) {
+            return series;
+        }
+        double[][] trimmed = new double[series.length][length];
+        for (int i = 0; i < series.length; i++) {
+            System.arraycopy(series[i], first, trimmed[i], 0, length);
+        }
+        return trimmed;
+    }
+
+
     private String _limit() {
         if (mWholeCollection) {
             ArrayList<Long> ids = new ArrayList<Long>();
@@ -32,7 +32,9 @@ import android.database.Cursor;
 public class Tags {
 
 	private Collection mCol;
-	private TreeMap<String, Integer> mTags = new TreeMap<String, Integer>();
+	private TreeMap<String, Integer> mTags;
+	/** Unparsed registry, until the tags are first accessed */
+	private String mJson = "{}";
 	private boolean mChanged;
 
     /**
@@ -45,25 +47,43 @@ public class Tags {
 	}
 
 
+	/**
+	 * Keep the registry as json and only parse it when tags are first needed, which usually isn't the case while
+	 * reviewing.
+	 */
 	public void load(String json) {
-        try {
-        	JSONObject tags = new JSONObject(json);
-        	Iterator i = tags.keys();
-        	while (i.hasNext()) {
-        		String t = (String) i.next();
-        		mTags.put(t, tags.getInt(t));
-        	}
-		} catch (JSONException e) {
-			throw new RuntimeException(e);
+		mTags = null;
+		mJson = json;
+		mChanged = false;
+	}
+
+
+	/**
+	 * Parse the registry on first access.
+	 */
+	private synchronized TreeMap<String, Integer> tags() {
+		if (mTags == null) {
+			mTags = new TreeMap<String, Integer>();
+			try {
+				JSONObject tags = new JSONObject(mJson);
+				Iterator i = tags.keys();
+				while (i.hasNext()) {
+					String t = (String) i.next();
+					mTags.put(t, tags.getInt(t));
+				}
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			mJson = null;
 		}
-        mChanged = false;
+		return mTags;
 	}
 
 
     public void flush() {
     	if (mChanged) {
     		JSONObject tags = new JSONObject();
-    		for (Map.Entry<String, Integer> t : mTags.entrySet()) {
+    		for (Map.Entry<String, Integer> t : tags().entrySet()) {
     			try {
 					tags.put(t.getKey(), t.getValue());
 				} catch (JSONException e) {
@@ -90,17 +110,17 @@ public class Tags {
     	// case is stored as received, so user can create different case
     	// versions of the same tag if they ignore the qt autocomplete.
     	for (String t : tags) {
-    		if (!mTags.containsKey(t)) {
-    			mTags.put(t, usn == 0 ? mCol.usn() : usn);
+    		if (!tags().containsKey(t)) {
+    			tags().put(t, usn == 0 ? mCol.usn() : usn);
     			mChanged = true;
     		}
     	}
     }
 
     public String[] all() {
-    	String[] tags = new String[mTags.size()];
+    	String[] tags = new String[tags().size()];
     	int i = 0;
-    	for (String t : mTags.keySet()) {
+    	for (String t : tags().keySet()) {
     		tags[i++] = t;
     	}
     	return tags;
@@ -117,7 +137,7 @@ public class Tags {
     		lim = " WHERE id IN " + Utils.ids2str(nids);
     	} else {
     		lim = "";
-    		mTags.clear();
+    		tags().clear();
     		mChanged = true;
     	}
     	ArrayList<String> tags = new ArrayList<String>();
@@ -140,7 +160,7 @@ public class Tags {
     }
 
     public TreeMap<String, Integer> allItems() {
-    	return mTags;
+    	return tags();
     }
 
     public void save() {
@@ -267,8 +287,8 @@ public class Tags {
      */
 
 	public void beforeUpload() {
-		for (String k : mTags.keySet()) {
-			mTags.put(k, 0);
+		for (String k : tags().keySet()) {
+			tags().put(k, 0);
 		}
 		save();
 	}
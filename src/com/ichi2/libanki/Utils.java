@@ -64,7 +64,7 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -132,6 +132,30 @@ public class Utils {
 
     private static final String ALL_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int FILE_CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    private static final long FILE_CHECKSUM_MAP_THRESHOLD = 1024 * 1024;
+    private static final long FILE_CHECKSUM_MAP_SIZE = 8 * 1024 * 1024;
+
+    // MessageDigest instances are not thread safe and expensive to look up, so keep one per thread
+    private static final ThreadLocal<MessageDigest> sSha1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(AnkiDroidApp.TAG, "Utils.checksum: No such algorithm. " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<ByteBuffer> sChecksumBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(FILE_CHECKSUM_BUFFER_SIZE);
+        }
+    };
+
     /**The time in integer seconds. Pass scale=1000 to get milliseconds. */
     public static double now() {
         return (System.currentTimeMillis() / 1000.0);
@@ -541,35 +565,17 @@ public class Utils {
      */
 
     /**
-     * MD5 checksum.
+     * SHA1 checksum.
      * Equivalent to python sha1.hexdigest()
      *
      * @param data the string to generate hash from
-     * @return A string of length 32 containing the hexadecimal representation of the MD5 checksum of data.
+     * @return A string of length 40 containing the hexadecimal representation of the SHA1 checksum of data.
      */
     public static String checksum(String data) {
-        String result = "";
-        if (data != null) {
-            MessageDigest md = null;
-            byte[] digest = null;
-            try {
-                md = MessageDigest.getInstance("SHA");
-                digest = md.digest(data.getBytes("UTF-8"));
-            } catch (NoSuchAlgorithmException e) {
-                Log.e(AnkiDroidApp.TAG, "Utils.checksum: No such algorithm. " + e.getMessage());
-                throw new RuntimeException(e);
-            } catch (UnsupportedEncodingException e) {
-                Log.e(AnkiDroidApp.TAG, "Utils.checksum: " + e.getMessage());
-                e.printStackTrace();
-            }
-            BigInteger biginteger = new BigInteger(1, digest);
-            result = biginteger.toString(16);
-            // pad with zeros to length of 32
-            if (result.length() < 32) {
-                result = "00000000000000000000000000000000".substring(0, 32 - result.length()) + result;
-            }
+        if (data == null) {
+            return "";
         }
-        return result;
+        return hexDigest(sha1Digest(data));
     }
 
 
@@ -578,43 +584,78 @@ public class Utils {
      * @return 32 bit unsigned number from first 8 digits of sha1 hash
      */
     public static long fieldChecksum(String data) {
-    	return Long.valueOf(checksum(data).substring(0, 8), 16);
+        byte[] digest = sha1Digest(data);
+        return ((digest[0] & 0xffL) << 24) | ((digest[1] & 0xffL) << 16) | ((digest[2] & 0xffL) << 8)
+                | (digest[3] & 0xffL);
     }
-    
+
+
     /**
      * Generate the SHA1 checksum of a file.
+     * Small files are read through a reused buffer, bigger ones are memory mapped in large blocks.
      * @param file The file to be checked
-     * @return A string of length 32 containing the hexadecimal representation of the SHA1 checksum of the file's contents. 
+     * @return A string of length 40 containing the hexadecimal representation of the SHA1 checksum of the file's
+     * contents, or an empty string if the file could not be read.
      */
     public static String fileChecksum(String file) {
-        byte[] buffer = new byte[1024];
-        byte[] digest = null;
+        MessageDigest md = sSha1.get();
+        md.reset();
+        FileInputStream fis = null;
         try {
-            InputStream fis = new FileInputStream(file);
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            int numRead = 0;
-            do {
-                numRead = fis.read(buffer);
-                if (numRead > 0) {
-                    md.update(buffer, 0, numRead);
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size < FILE_CHECKSUM_MAP_THRESHOLD) {
+                ByteBuffer buffer = sChecksumBuffer.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+            } else {
+                for (long pos = 0; pos < size; pos += FILE_CHECKSUM_MAP_SIZE) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(FILE_CHECKSUM_MAP_SIZE, size - pos)));
                 }
-            } while (numRead != -1);
-            fis.close();
-            digest = md.digest();
+            }
+            return hexDigest(md.digest());
         } catch (FileNotFoundException e) {
             Log.e(AnkiDroidApp.TAG, "Utils.fileChecksum: File not found.", e);
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(AnkiDroidApp.TAG, "Utils.fileChecksum: No such algorithm.", e);
         } catch (IOException e) {
             Log.e(AnkiDroidApp.TAG, "Utils.fileChecksum: IO exception.", e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(AnkiDroidApp.TAG, "Utils.fileChecksum: could not close file.", e);
+                }
+            }
+        }
+        return "";
+    }
+
+
+    private static byte[] sha1Digest(String data) {
+        MessageDigest md = sSha1.get();
+        md.reset();
+        try {
+            return md.digest(data.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(AnkiDroidApp.TAG, "Utils.checksum: " + e.getMessage());
+            throw new RuntimeException(e);
         }
-        BigInteger biginteger = new BigInteger(1, digest);
-        String result = biginteger.toString(16);
-        // pad with zeros to length of 40 - SHA1 is 160bit long
-        if (result.length() < 40) {
-            result = "0000000000000000000000000000000000000000".substring(0, 40 - result.length()) + result;
+    }
+
+
+    /** Lower case hexadecimal representation of a digest, two characters per byte. */
+    public static String hexDigest(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0f];
         }
-        return result;
+        return new String(hex);
     }
 
 
@@ -723,7 +723,7 @@ public class Syncer {
 	    	HashMap<Long, Long> lmods = new HashMap<Long, Long>();
 	    	Cursor cur = null;
 	    	try {
-	    		cur = mCol.getDb().getDatabase().rawQuery("SELECT id, mod FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND " + usnLim(), null);
+	    		cur = mCol.getDb().getDatabase().rawQuery("SELECT id, mod FROM " + table + " WHERE id IN " + mCol.getDb().idSet("syncids", ids) + " AND " + usnLim(), null);
 	    		while (cur.moveToNext()) {
 	    			lmods.put(cur.getLong(0), cur.getLong(1));
 	    		}
@@ -755,6 +755,7 @@ public class Syncer {
     	for (Object[] n : newerRows(notes, "notes", 4)) {
     		mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", n);
     		mCol.updateFieldCache(new long[]{(Long) n[0]});
+    		mCol.getRenderCache().removeNote((Long) n[0]);
     	}
     }
    
@@ -20,13 +20,12 @@
 package com.ichi2.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
 import java.util.regex.Pattern;
 
@@ -50,10 +49,6 @@ public class DiffEngine {
      * Cost of an empty edit operation in terms of edit characters.
      */
     public short Diff_EditCost = 4;
-    /**
-     * The size beyond which the double-ended diff activates. Double-ending is twice as fast, but less accurate.
-     */
-    public short Diff_DualThreshold = 32;
 
     /**
      * Colors for right and wrong answer
@@ -114,6 +109,30 @@ public class DiffEngine {
      * @return Linked List of Diff objects.
      */
     public LinkedList<DiffAction> diff_main(String text1, String text2, boolean checklines) {
+        // Set a deadline by which time the diff must be complete.
+        long deadline;
+        if (Diff_Timeout <= 0) {
+            deadline = Long.MAX_VALUE;
+        } else {
+            deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+        }
+        return diff_main(text1, text2, checklines, deadline);
+    }
+
+
+    /**
+     * Find the differences between two texts. Simplifies the problem by stripping any common prefix or suffix off the
+     * texts before diffing.
+     * 
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @param checklines Speedup flag. If false, then don't run a line-level diff first to identify the changed areas.
+     *            If true, then run a faster slightly less optimal diff
+     * @param deadline Time when the diff should be complete by. Used internally for recursive calls. Users should set
+     *            Diff_Timeout instead.
+     * @return Linked List of Diff objects.
+     */
+    private LinkedList<DiffAction> diff_main(String text1, String text2, boolean checklines, long deadline) {
         // Check for equality (speedup)
         LinkedList<DiffAction> diffs;
         if (text1.equals(text2)) {
@@ -135,7 +154,7 @@ public class DiffEngine {
         text2 = text2.substring(0, text2.length() - commonlength);
 
         // Compute the diff on the middle block
-        diffs = diff_compute(text1, text2, checklines);
+        diffs = diff_compute(text1, text2, checklines, deadline);
 
         // Restore the prefix and suffix
         if (commonprefix.length() > 0) {
@@ -157,9 +176,10 @@ public class DiffEngine {
      * @param text2 New string to be diffed.
      * @param checklines Speedup flag. If false, then don't run a line-level diff first to identify the changed areas.
      *            If true, then run a faster slightly less optimal diff
+     * @param deadline Time when the diff should be complete by.
      * @return Linked List of Diff objects.
      */
-    protected LinkedList<DiffAction> diff_compute(String text1, String text2, boolean checklines) {
+    protected LinkedList<DiffAction> diff_compute(String text1, String text2, boolean checklines, long deadline) {
         LinkedList<DiffAction> diffs = new LinkedList<DiffAction>();
 
         if (text1.length() == 0) {
@@ -185,6 +205,14 @@ public class DiffEngine {
             diffs.add(new DiffAction(op, longtext.substring(i + shorttext.length())));
             return diffs;
         }
+
+        if (shorttext.length() == 1) {
+            // Single character string.
+            // After the previous speedup, the character can't be an equality.
+            diffs.add(new DiffAction(Operation.DELETE, text1));
+            diffs.add(new DiffAction(Operation.INSERT, text2));
+            return diffs;
+        }
         longtext = shorttext = null; // Garbage collect
 
         // Check to see if the problem can be split in two.
@@ -197,8 +225,8 @@ public class DiffEngine {
             String text2_b = hm[3];
             String mid_common = hm[4];
             // Send both pairs off for separate processing.
-            LinkedList<DiffAction> diffs_a = diff_main(text1_a, text2_a, checklines);
-            LinkedList<DiffAction> diffs_b = diff_main(text1_b, text2_b, checklines);
+            LinkedList<DiffAction> diffs_a = diff_main(text1_a, text2_a, checklines, deadline);
+            LinkedList<DiffAction> diffs_b = diff_main(text1_b, text2_b, checklines, deadline);
             // Merge the results.
             diffs = diffs_a;
             diffs.add(new DiffAction(Operation.EQUAL, mid_common));
@@ -219,12 +247,11 @@ public class DiffEngine {
             linearray = b.lineArray;
         }
 
-        diffs = diff_map(text1, text2);
-        if (diffs == null) {
-            // No acceptable result.
-            diffs = new LinkedList<DiffAction>();
-            diffs.add(new DiffAction(Operation.DELETE, text1));
-            diffs.add(new DiffAction(Operation.INSERT, text2));
+        if (checklines) {
+            // Diff the encoded lines, they may again share a prefix or be a single character each.
+            diffs = diff_main(text1, text2, false, deadline);
+        } else {
+            diffs = diff_bisect(text1, text2, deadline);
         }
 
         if (checklines) {
@@ -261,7 +288,7 @@ public class DiffEngine {
                                 pointer.previous();
                                 pointer.remove();
                             }
-                            for (DiffAction newDiff : diff_main(text_delete, text_insert, false)) {
+                            for (DiffAction newDiff : diff_main(text_delete, text_insert, false, deadline)) {
                                 pointer.add(newDiff);
                             }
                         }
@@ -360,249 +387,148 @@ public class DiffEngine {
 
 
     /**
-     * Explore the intersection points between the two texts.
+     * Find the 'middle snake' of a diff, split the problem in two and return the recursively constructed diff. See
+     * Myers 1986 paper: An O(ND) Difference Algorithm and Its Variations.
+     * <p>
+     * The furthest reaching x of each diagonal is kept in a plain int array for both the forward and the reverse
+     * path, so the search allocates two arrays for the whole run instead of a set of boxed footprints per step.
      * 
      * @param text1 Old string to be diffed.
      * @param text2 New string to be diffed.
-     * @return LinkedList of Diff objects or null if no diff available.
+     * @param deadline Time at which to bail if not yet complete.
+     * @return LinkedList of Diff objects.
      */
-    protected LinkedList<DiffAction> diff_map(String text1, String text2) {
-        long ms_end = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    protected LinkedList<DiffAction> diff_bisect(String text1, String text2, long deadline) {
         // Cache the text lengths to prevent multiple calls.
         int text1_length = text1.length();
         int text2_length = text2.length();
-        int max_d = text1_length + text2_length - 1;
-        boolean doubleEnd = Diff_DualThreshold * 2 < max_d;
-        List<Set<Long>> v_map1 = new ArrayList<Set<Long>>();
-        List<Set<Long>> v_map2 = new ArrayList<Set<Long>>();
-        Map<Integer, Integer> v1 = new HashMap<Integer, Integer>();
-        Map<Integer, Integer> v2 = new HashMap<Integer, Integer>();
-        v1.put(1, 0);
-        v2.put(1, 0);
-        int x, y;
-        Long footstep = 0L; // Used to track overlapping paths.
-        Map<Long, Integer> footsteps = new HashMap<Long, Integer>();
-        boolean done = false;
+        int max_d = (text1_length + text2_length + 1) / 2;
+        int v_offset = max_d;
+        int v_length = 2 * max_d;
+        int[] v1 = new int[v_length];
+        int[] v2 = new int[v_length];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[v_offset + 1] = 0;
+        v2[v_offset + 1] = 0;
+        int delta = text1_length - text2_length;
         // If the total number of characters is odd, then the front path will
         // collide with the reverse path.
-        boolean front = ((text1_length + text2_length) % 2 == 1);
+        boolean front = (delta % 2 != 0);
+        // Offsets for start and end of k loop.
+        // Prevents mapping of space beyond the grid.
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
         for (int d = 0; d < max_d; d++) {
-            // Bail out if timeout reached.
-            if (Diff_Timeout > 0 && System.currentTimeMillis() > ms_end) {
-                return null;
+            // Bail out if deadline is reached.
+            if (System.currentTimeMillis() > deadline) {
+                break;
             }
 
             // Walk the front path one step.
-            v_map1.add(new HashSet<Long>()); // Adds at index 'd'.
-            for (int k = -d; k <= d; k += 2) {
-                if (k == -d || k != d && v1.get(k - 1) < v1.get(k + 1)) {
-                    x = v1.get(k + 1);
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1_offset = v_offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+                    x1 = v1[k1_offset + 1];
                 } else {
-                    x = v1.get(k - 1) + 1;
+                    x1 = v1[k1_offset - 1] + 1;
                 }
-                y = x - k;
-                if (doubleEnd) {
-                    footstep = diff_footprint(x, y);
-                    if (front && (footsteps.containsKey(footstep))) {
-                        done = true;
-                    }
-                    if (!front) {
-                        footsteps.put(footstep, d);
-                    }
+                int y1 = x1 - k1;
+                while (x1 < text1_length && y1 < text2_length && text1.charAt(x1) == text2.charAt(y1)) {
+                    x1++;
+                    y1++;
                 }
-                while (!done && x < text1_length && y < text2_length && text1.charAt(x) == text2.charAt(y)) {
-                    x++;
-                    y++;
-                    if (doubleEnd) {
-                        footstep = diff_footprint(x, y);
-                        if (front && (footsteps.containsKey(footstep))) {
-                            done = true;
-                        }
-                        if (!front) {
-                            footsteps.put(footstep, d);
+                v1[k1_offset] = x1;
+                if (x1 > text1_length) {
+                    // Ran off the right of the graph.
+                    k1end += 2;
+                } else if (y1 > text2_length) {
+                    // Ran off the bottom of the graph.
+                    k1start += 2;
+                } else if (front) {
+                    int k2_offset = v_offset + delta - k1;
+                    if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+                        // Mirror x2 onto top-left coordinate system.
+                        int x2 = text1_length - v2[k2_offset];
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
                         }
                     }
                 }
-                v1.put(k, x);
-                v_map1.get(d).add(diff_footprint(x, y));
-                if (x == text1_length && y == text2_length) {
-                    // Reached the end in single-path mode.
-                    return diff_path1(v_map1, text1, text2);
-                } else if (done) {
-                    // Front path ran over reverse path.
-                    v_map2 = v_map2.subList(0, footsteps.get(footstep) + 1);
-                    LinkedList<DiffAction> a = diff_path1(v_map1, text1.substring(0, x), text2.substring(0, y));
-                    a.addAll(diff_path2(v_map2, text1.substring(x), text2.substring(y)));
-                    return a;
-                }
             }
 
-            if (doubleEnd) {
-                // Walk the reverse path one step.
-                v_map2.add(new HashSet<Long>()); // Adds at index 'd'.
-                for (int k = -d; k <= d; k += 2) {
-                    if (k == -d || k != d && v2.get(k - 1) < v2.get(k + 1)) {
-                        x = v2.get(k + 1);
-                    } else {
-                        x = v2.get(k - 1) + 1;
-                    }
-                    y = x - k;
-                    footstep = diff_footprint(text1_length - x, text2_length - y);
-                    if (!front && (footsteps.containsKey(footstep))) {
-                        done = true;
-                    }
-                    if (front) {
-                        footsteps.put(footstep, d);
-                    }
-                    while (!done && x < text1_length && y < text2_length
-                            && text1.charAt(text1_length - x - 1) == text2.charAt(text2_length - y - 1)) {
-                        x++;
-                        y++;
-                        footstep = diff_footprint(text1_length - x, text2_length - y);
-                        if (!front && (footsteps.containsKey(footstep))) {
-                            done = true;
-                        }
-                        if (front) {
-                            footsteps.put(footstep, d);
-                        }
-                    }
-                    v2.put(k, x);
-                    v_map2.get(d).add(diff_footprint(x, y));
-                    if (done) {
-                        // Reverse path ran over front path.
-                        v_map1 = v_map1.subList(0, footsteps.get(footstep) + 1);
-                        LinkedList<DiffAction> a = diff_path1(v_map1, text1.substring(0, text1_length - x),
-                                text2.substring(0, text2_length - y));
-                        a.addAll(diff_path2(v_map2, text1.substring(text1_length - x),
-                                text2.substring(text2_length - y)));
-                        return a;
-                    }
-                }
-            }
-        }
-        // Number of diffs equals number of characters, no commonality at all.
-        return null;
-    }
-
-
-    /**
-     * Work from the middle back to the start to determine the path.
-     * 
-     * @param v_map List of path sets.
-     * @param text1 Old string fragment to be diffed.
-     * @param text2 New string fragment to be diffed.
-     * @return LinkedList of Diff objects.
-     */
-    protected LinkedList<DiffAction> diff_path1(List<Set<Long>> v_map, String text1, String text2) {
-        LinkedList<DiffAction> path = new LinkedList<DiffAction>();
-        int x = text1.length();
-        int y = text2.length();
-        Operation last_op = null;
-        for (int d = v_map.size() - 2; d >= 0; d--) {
-            while (true) {
-                if (v_map.get(d).contains(diff_footprint(x - 1, y))) {
-                    x--;
-                    if (last_op == Operation.DELETE) {
-                        path.getFirst().text = text1.charAt(x) + path.getFirst().text;
-                    } else {
-                        path.addFirst(new DiffAction(Operation.DELETE, text1.substring(x, x + 1)));
-                    }
-                    last_op = Operation.DELETE;
-                    break;
-                } else if (v_map.get(d).contains(diff_footprint(x, y - 1))) {
-                    y--;
-                    if (last_op == Operation.INSERT) {
-                        path.getFirst().text = text2.charAt(y) + path.getFirst().text;
-                    } else {
-                        path.addFirst(new DiffAction(Operation.INSERT, text2.substring(y, y + 1)));
-                    }
-                    last_op = Operation.INSERT;
-                    break;
+            // Walk the reverse path one step.
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2_offset = v_offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+                    x2 = v2[k2_offset + 1];
                 } else {
-                    x--;
-                    y--;
-                    assert (text1.charAt(x) == text2.charAt(y)) : "No diagonal.  Can't happen. (diff_path1)";
-                    if (last_op == Operation.EQUAL) {
-                        path.getFirst().text = text1.charAt(x) + path.getFirst().text;
-                    } else {
-                        path.addFirst(new DiffAction(Operation.EQUAL, text1.substring(x, x + 1)));
+                    x2 = v2[k2_offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < text1_length && y2 < text2_length
+                        && text1.charAt(text1_length - x2 - 1) == text2.charAt(text2_length - y2 - 1)) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2_offset] = x2;
+                if (x2 > text1_length) {
+                    // Ran off the left of the graph.
+                    k2end += 2;
+                } else if (y2 > text2_length) {
+                    // Ran off the top of the graph.
+                    k2start += 2;
+                } else if (!front) {
+                    int k1_offset = v_offset + delta - k2;
+                    if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+                        int x1 = v1[k1_offset];
+                        int y1 = v_offset + x1 - k1_offset;
+                        // Mirror x2 onto top-left coordinate system.
+                        x2 = text1_length - x2;
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                        }
                     }
-                    last_op = Operation.EQUAL;
                 }
             }
         }
-        return path;
+        // Diff took too long and hit the deadline or
+        // number of diffs equals number of characters, no commonality at all.
+        LinkedList<DiffAction> diffs = new LinkedList<DiffAction>();
+        diffs.add(new DiffAction(Operation.DELETE, text1));
+        diffs.add(new DiffAction(Operation.INSERT, text2));
+        return diffs;
     }
 
 
     /**
-     * Work from the middle back to the end to determine the path.
+     * Given the location of the 'middle snake', split the diff in two parts and recurse.
      * 
-     * @param v_map List of path sets.
-     * @param text1 Old string fragment to be diffed.
-     * @param text2 New string fragment to be diffed.
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @param x Index of split point in text1.
+     * @param y Index of split point in text2.
+     * @param deadline Time at which to bail if not yet complete.
      * @return LinkedList of Diff objects.
      */
-    protected LinkedList<DiffAction> diff_path2(List<Set<Long>> v_map, String text1, String text2) {
-        LinkedList<DiffAction> path = new LinkedList<DiffAction>();
-        int x = text1.length();
-        int y = text2.length();
-        Operation last_op = null;
-        for (int d = v_map.size() - 2; d >= 0; d--) {
-            while (true) {
-                if (v_map.get(d).contains(diff_footprint(x - 1, y))) {
-                    x--;
-                    if (last_op == Operation.DELETE) {
-                        path.getLast().text += text1.charAt(text1.length() - x - 1);
-                    } else {
-                        path.addLast(new DiffAction(Operation.DELETE, text1.substring(text1.length() - x - 1,
-                                text1.length() - x)));
-                    }
-                    last_op = Operation.DELETE;
-                    break;
-                } else if (v_map.get(d).contains(diff_footprint(x, y - 1))) {
-                    y--;
-                    if (last_op == Operation.INSERT) {
-                        path.getLast().text += text2.charAt(text2.length() - y - 1);
-                    } else {
-                        path.addLast(new DiffAction(Operation.INSERT, text2.substring(text2.length() - y - 1,
-                                text2.length() - y)));
-                    }
-                    last_op = Operation.INSERT;
-                    break;
-                } else {
-                    x--;
-                    y--;
-                    assert (text1.charAt(text1.length() - x - 1) == text2.charAt(text2.length() - y - 1)) : "No diagonal.  Can't happen. (diff_path2)";
-                    if (last_op == Operation.EQUAL) {
-                        path.getLast().text += text1.charAt(text1.length() - x - 1);
-                    } else {
-                        path.addLast(new DiffAction(Operation.EQUAL, text1.substring(text1.length() - x - 1,
-                                text1.length() - x)));
-                    }
-                    last_op = Operation.EQUAL;
-                }
-            }
-        }
-        return path;
-    }
+    private LinkedList<DiffAction> diff_bisectSplit(String text1, String text2, int x, int y, long deadline) {
+        String text1a = text1.substring(0, x);
+        String text2a = text2.substring(0, y);
+        String text1b = text1.substring(x);
+        String text2b = text2.substring(y);
 
+        // Compute both diffs serially.
+        LinkedList<DiffAction> diffs = diff_main(text1a, text2a, false, deadline);
+        LinkedList<DiffAction> diffsb = diff_main(text1b, text2b, false, deadline);
 
-    /**
-     * Compute a good hash of two integers.
-     * 
-     * @param x First int.
-     * @param y Second int.
-     * @return A long made up of both ints.
-     */
-    protected long diff_footprint(int x, int y) {
-        // The maximum size for a long is 9,223,372,036,854,775,807
-        // The maximum size for an int is 2,147,483,647
-        // Two ints fit nicely in one long.
-        long result = x;
-        result = result << 32;
-        result += y;
-        return result;
+        diffs.addAll(diffsb);
+        return diffs;
     }
 
 
@@ -0,0 +1,126 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies several html rewriting filters in a single pass over the content.
+ * <p>
+ * Each filter contributes a regular expression for the markup it handles. The expressions are combined into one
+ * alternation, so the content is scanned once and every match is handed to the filter it belongs to, which appends its
+ * replacement to the one output buffer. Where the markup of two filters could overlap, the one starting first wins and
+ * for equal starts the filter added first wins.
+ * <p>
+ * A chain is immutable once built and can be reused; the pattern is compiled once per chain.
+ */
+public class HtmlFilterChain {
+
+    /** A rewriting step of the chain */
+    public interface Filter {
+        /** The expression to look for. Its groups are numbered from 1, as if it was used on its own. */
+        public String pattern();
+
+
+        /**
+         * Append the replacement of the current match to out.
+         * @param m The matcher positioned on a match of this filter
+         * @param group The group number of this filter's group 0 in m; group n of this filter is m.group(group + n)
+         */
+        public void replace(Matcher m, int group, StringBuilder out);
+    }
+
+    private final Filter[] mFilters;
+    /** Group number in the combined pattern at which each filter's expression starts */
+    private final int[] mGroups;
+    private final Pattern mPattern;
+
+
+    public HtmlFilterChain(Filter... filters) {
+        ArrayList<Filter> active = new ArrayList<Filter>();
+        for (Filter f : filters) {
+            if (f != null) {
+                active.add(f);
+            }
+        }
+        mFilters = active.toArray(new Filter[active.size()]);
+        mGroups = new int[mFilters.length];
+        StringBuilder combined = new StringBuilder();
+        int group = 1;
+        for (int i = 0; i < mFilters.length; i++) {
+            String p = mFilters[i].pattern();
+            if (i > 0) {
+                combined.append('|');
+            }
+            combined.append('(').append(p).append(')');
+            mGroups[i] = group;
+            group += 1 + Pattern.compile(p).matcher("").groupCount();
+        }
+        mPattern = mFilters.length > 0 ? Pattern.compile(combined.toString()) : null;
+    }
+
+
+    /** Return content with all filters applied. Content without any match is returned as is. */
+    public String apply(String content) {
+        if (mPattern == null) {
+            return content;
+        }
+        Matcher m = mPattern.matcher(content);
+        if (!m.find()) {
+            return content;
+        }
+        StringBuilder out = new StringBuilder(content.length() + 256);
+        int last = 0;
+        do {
+            out.append(content, last, m.start());
+            for (int i = 0; i < mFilters.length; i++) {
+                if (m.start(mGroups[i]) != -1) {
+                    mFilters[i].replace(m, mGroups[i], out);
+                    break;
+                }
+            }
+            last = m.end();
+        } while (m.find());
+        out.append(content, last, content.length());
+        return out.toString();
+    }
+
+
+    /** A filter replacing a literal string */
+    public static class Replace implements Filter {
+        private final String mPattern;
+        private final String mReplacement;
+
+
+        public Replace(String literal, String replacement) {
+            mPattern = Pattern.quote(literal);
+            mReplacement = replacement;
+        }
+
+
+        @Override
+        public String pattern() {
+            return mPattern;
+        }
+
+
+        @Override
+        public void replace(Matcher m, int group, StringBuilder out) {
+            out.append(mReplacement);
+        }
+    }
+}
@@ -11,8 +11,15 @@ public class DeckStatus {
     public int mDueCards;
     public int mProgress;
     public int mEta;
+    /** Time in seconds at which the next card of the deck (or one of its children) becomes due, 0 if unknown */
+    public long mNextDue;
 
     public DeckStatus(long deckId, String deckName, int newCards, int lrnCards, int dueCards, int progress, int eta) {
+    	this(deckId, deckName, newCards, lrnCards, dueCards, progress, eta, 0);
+    }
+
+    public DeckStatus(long deckId, String deckName, int newCards, int lrnCards, int dueCards, int progress, int eta,
+    		long nextDue) {
     	mDeckId = deckId;
         mDeckName = deckName;
         mNewCards = newCards;
@@ -20,5 +27,6 @@ public class DeckStatus {
         mDueCards = dueCards;
         mProgress = progress;
         mEta = eta;
+        mNextDue = nextDue;
     }
 }
\ No newline at end of file
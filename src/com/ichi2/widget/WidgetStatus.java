@@ -22,11 +22,16 @@ import com.ichi2.anki.services.NotificationService;
 import com.ichi2.async.DeckTask.TaskData;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Decks;
+import com.ichi2.libanki.Utils;
 import com.tomgibara.android.veecheck.util.PrefSettings;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.os.AsyncTask;
 import android.util.Log;
@@ -52,6 +57,11 @@ public final class WidgetStatus {
 
 	private static DeckStatus sDeckStatus;
 	private static AsyncTask<Context,Void,Context> sUpdateDeckStatusAsyncTask;
+	/** Set when an update is requested while one is running; all such requests are served by one more run */
+	private static boolean sUpdatePending = false;
+
+	/** Minimum delay of the update alarm, so that a due time which has just passed does not make it spin */
+	private static final long MIN_ALARM_DELAY = 60000;
 
     /** This class should not be instantiated. */
     private WidgetStatus() {}
@@ -87,15 +97,131 @@ public final class WidgetStatus {
         } else {
         	notification = false;
         }
-        if ((mediumWidget || smallWidget || bigWidget || notification) && ((sUpdateDeckStatusAsyncTask == null) || (sUpdateDeckStatusAsyncTask.getStatus() == AsyncTask.Status.FINISHED))) {
+        if (!(mediumWidget || smallWidget || bigWidget || notification)) {
+            Log.d(AnkiDroidApp.TAG, "WidgetStatus.update(): not enabled");
+            scheduleNextUpdate(context);
+        } else if ((sUpdateDeckStatusAsyncTask == null) || (sUpdateDeckStatusAsyncTask.getStatus() == AsyncTask.Status.FINISHED)) {
             Log.d(AnkiDroidApp.TAG, "WidgetStatus.update(): updating");
+            sUpdatePending = false;
             sUpdateDeckStatusAsyncTask = new UpdateDeckStatusAsyncTask();
             sUpdateDeckStatusAsyncTask.execute(context);
         } else {
-            Log.d(AnkiDroidApp.TAG, "WidgetStatus.update(): already running or not enabled");
+            Log.d(AnkiDroidApp.TAG, "WidgetStatus.update(): already running, update again when finished");
+            sUpdatePending = true;
+        }
+    }
+
+
+    /**
+     * Arm the single alarm which updates widgets and the due notification at the next moment their counts can change,
+     * i.e. the next learning step or the start of the next day as stored with the due counts. Replaces any alarm armed
+     * before, and cancels it if nothing shows the counts.
+     */
+    public static void scheduleNextUpdate(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent intent = PendingIntent.getBroadcast(context, 0, new Intent(context, UpdateAlarmReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        long nextDue = isSummaryNeeded(context) ? MetaDB.getWidgetStatusNextDue(context, Utils.intNow()) : 0;
+        if (nextDue == 0) {
+            alarmManager.cancel(intent);
+            return;
+        }
+        long time = Math.max(nextDue * 1000, System.currentTimeMillis() + MIN_ALARM_DELAY);
+        Log.i(AnkiDroidApp.TAG, "WidgetStatus: next update in " + ((time - System.currentTimeMillis()) / 1000) + " s");
+        // not a wakeup alarm: while the device sleeps nobody looks at the widgets, they are updated when it wakes up
+        alarmManager.set(AlarmManager.RTC, time, intent);
+    }
+
+
+    /** Receives the alarm armed by {@link WidgetStatus#scheduleNextUpdate(Context)}. */
+    public static class UpdateAlarmReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.i(AnkiDroidApp.TAG, "WidgetStatus: update alarm");
+            update(context);
+        }
+    }
+
+    /** Whether any widget or the due notification shows the due counts. */
+    public static boolean isSummaryNeeded(Context context) {
+        SharedPreferences preferences = PrefSettings.getSharedPrefs(context);
+        return preferences.getBoolean("widgetMediumEnabled", false) || preferences.getBoolean("widgetSmallEnabled", false)
+                || preferences.getBoolean("widgetBigEnabled", false)
+                || Integer.parseInt(preferences.getString("minimumCardsDueForNotification", "1000001")) < 1000000;
+    }
+
+
+    /**
+     * Store the due counts of an open collection, so that widgets and the due notification can be refreshed from them
+     * without opening the collection again until the next learning card or day is due. Called when the collection is
+     * closed. While it is open, each widget update computes the counts from it and stores them as well, so answering a
+     * card doesn't need to.
+     */
+    public static void storeSummary(Context context, Collection col) {
+        if (!isSummaryNeeded(context)) {
+            return;
+        }
+        try {
+            MetaDB.storeWidgetStatus(context, computeDeckStatus(col), col.getSched().getDayCutoff());
+            scheduleNextUpdate(context);
+        } catch (SQLException e) {
+            Log.e(AnkiDroidApp.TAG, "WidgetStatus: could not store due counts", e);
+        }
+    }
+
+
+    /**
+     * Compute the status of each deck of an open collection. The next due time of a deck is the earliest learning
+     * step still to come in it or its children, else the start of the next day.
+     */
+    public static DeckStatus[] computeDeckStatus(Collection col) {
+        Object[] di = col.getSched().deckCounts();
+        int progress = (int) (col.getSched().todaysProgress(null, true, true) * 100);
+        int eta = (Integer) di[1];
+        long dayCutoff = col.getSched().getDayCutoff();
+
+        HashMap<Long, Long> lrnDue = new HashMap<Long, Long>();
+        Cursor cur = null;
+        try {
+            cur = col.getDb().getDatabase().rawQuery(
+                    "SELECT did, min(due) FROM cards WHERE queue = 1 AND due > " + Utils.intNow() + " GROUP BY did",
+                    null);
+            while (cur.moveToNext()) {
+                lrnDue.put(cur.getLong(0), cur.getLong(1));
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+
+        ArrayList<DeckStatus> decks = new ArrayList<DeckStatus>();
+        for (Object[] d : (TreeSet<Object[]>) di[0]) {
+            String[] sname = (String[]) d[0];
+            StringBuilder name = new StringBuilder();
+            name.append(sname[0]);
+            for (int i = 1; i < sname.length; i++) {
+                name.append("::").append(sname[i]);
+            }
+            long did = (Long) d[1];
+            long nextDue = dayCutoff;
+            if (!lrnDue.isEmpty()) {
+                ArrayList<Long> dids = new ArrayList<Long>(col.getDecks().children(did).values());
+                dids.add(did);
+                for (long cdid : dids) {
+                    Long due = lrnDue.get(cdid);
+                    if (due != null && due < nextDue) {
+                        nextDue = due;
+                    }
+                }
+            }
+            decks.add(new DeckStatus(did, name.toString(), (Integer) d[2], (Integer) d[3], (Integer) d[4], progress,
+                    eta, nextDue));
         }
+        return decks.toArray(new DeckStatus[decks.size()]);
     }
 
+
     public static void waitToFinish() {
         try {
             if ((sUpdateDeckStatusAsyncTask != null) && (sUpdateDeckStatusAsyncTask.getStatus() != AsyncTask.Status.FINISHED)) {
@@ -147,6 +273,7 @@ public final class WidgetStatus {
         private static final DeckStatus[] EMPTY_DECK_STATUS = new DeckStatus[0];
 
         private static DeckStatus[] mDecks = EMPTY_DECK_STATUS;
+        private static long mDayCutoff;
 
         @Override
         protected Context doInBackground(Context... params) {
@@ -157,8 +284,16 @@ public final class WidgetStatus {
             	return context;
             }
 
+            Collection col = Collection.currentCollection();
+            if (col == null && MetaDB.getWidgetStatusValidUntil(context) > Utils.intNow()) {
+                // the stored counts are still valid, no need to open the collection
+                Log.i(AnkiDroidApp.TAG, "WidgetStatus: using stored due counts");
+                mDecks = null;
+                return context;
+            }
+
             // For the deck information
-            ArrayList<DeckStatus> decks = new ArrayList<DeckStatus>();
+            DeckStatus[] decks = EMPTY_DECK_STATUS;
 
 //            if (sDeckStatus != null && mDecks != null && mDecks.length > 0) {
 //            	decks = new ArrayList<DeckStatus>(mDecks.length);
@@ -176,41 +311,39 @@ public final class WidgetStatus {
 //        		}
 //            } else {
             	try {
-            		Collection col = Collection.currentCollection();
-            		Object[] di;
-            		float progress;
             		if (col == null) {
             			col = Collection.openCollection(AnkiDroidApp.getCollectionPath());
-                   		di = col.getSched().deckCounts();
-                   		progress = col.getSched().todaysProgress(null, true, true);
+            			decks = computeDeckStatus(col);
+            			mDayCutoff = col.getSched().getDayCutoff();
                    		col.close(false);
             		} else {
-                   		di = col.getSched().deckCounts();
-                   		progress = col.getSched().todaysProgress(null, true, true);
-            		}
-            		int eta = (Integer) di[1];
-                    for (Object[] d : (TreeSet<Object[]>) di[0]) {
-                    	String[] sname = (String[]) d[0];
-                    	StringBuilder name = new StringBuilder();
-                    	name.append(sname[0]);
-                    	for (int i = 1; i < sname.length; i++) {
-                    		name.append("::").append(sname[i]);
-                    	}
-                        decks.add(new DeckStatus((Long) d[1], name.toString(), (Integer) d[2], (Integer) d[3], (Integer) d[4], (int) (progress * 100), eta));            			
+            			// the collection is in use by the app's tasks
+            			synchronized (Collection.getLock()) {
+            				if (Collection.currentCollection() != col) {
+            					// closed meanwhile, which stored the counts
+            					mDecks = null;
+            					return context;
+            				}
+            				decks = computeDeckStatus(col);
+            				mDayCutoff = col.getSched().getDayCutoff();
+            			}
             		}
                 } catch (SQLException e) {
                     Log.i(AnkiDroidApp.TAG, "Widget: Problems on retrieving deck information");
                 }
 //            }
 
-            mDecks = decks.toArray(EMPTY_DECK_STATUS);
+            mDecks = decks;
             return context;
         }
 
         @Override
         protected void onPostExecute(Context context) {
             Log.d(AnkiDroidApp.TAG, "WidgetStatus.UpdateDeckStatusAsyncTask.onPostExecute()");
-            MetaDB.storeWidgetStatus(context, mDecks);
+            if (mDecks != null) {
+                MetaDB.storeWidgetStatus(context, mDecks, mDayCutoff);
+                scheduleNextUpdate(context);
+            }
             if (mediumWidget) {
             	Intent intent;
                 intent = new Intent(context, AnkiDroidWidgetMedium.UpdateService.class);
@@ -233,6 +366,12 @@ public final class WidgetStatus {
                 intent = new Intent(context, NotificationService.class);
                 context.startService(intent);
             }
+            scheduleNextUpdate(context);
+            if (sUpdatePending) {
+                // this task only counts as finished after onPostExecute
+                sUpdateDeckStatusAsyncTask = null;
+                update(context);
+            }
         }
     }
 
@@ -12,7 +12,6 @@ import com.ichi2.libanki.Utils;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.Writer;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -367,7 +366,7 @@ public class Mustache
         public StringSegment (String text) {
             _text = text;
         }
-        @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
+        @Override public void execute (Template tmpl, Template.Context ctx, StringBuilder out) {
             write(out, _text);
         }
         protected final String _text;
@@ -381,6 +380,8 @@ public class Mustache
         }
         protected final String _name;
         protected final int _line;
+        /** Slot of _name, bound by the template */
+        protected int _slot;
     }
 
     /** A segment that substitutes the contents of a variable. */
@@ -389,8 +390,8 @@ public class Mustache
             super(name, line);
             _stripSpan = stripSpan;
         }
-        @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+        @Override public void execute (Template tmpl, Template.Context ctx, StringBuilder out)  {
+            Object value = tmpl.getValue(ctx, _slot, _name, _line);
             if (value != null) {
                 String text = String.valueOf(value);
                 write(out, _stripSpan ? stripSpan(text) : text);
@@ -481,7 +482,7 @@ public class Mustache
             super(name, line);
             _segs = segs;
         }
-        protected void executeSegs (Template tmpl, Template.Context ctx, Writer out)  {
+        protected void executeSegs (Template tmpl, Template.Context ctx, StringBuilder out)  {
             for (Template.Segment seg : _segs) {
                 seg.execute(tmpl, ctx, out);
             }
@@ -494,8 +495,8 @@ public class Mustache
         public SectionSegment (String name, Template.Segment[] segs, int line) {
             super(name, segs, line);
         }
-        @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+        @Override public void execute (Template tmpl, Template.Context ctx, StringBuilder out)  {
+            Object value = tmpl.getValue(ctx, _slot, _name, _line);
             if (value == null) {
                 return; // TODO: configurable behavior on missing values
             }
@@ -536,8 +537,8 @@ public class Mustache
         public InvertedSectionSegment (String name, Template.Segment[] segs, int line) {
             super(name, segs, line);
         }
-        @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+        @Override public void execute (Template tmpl, Template.Context ctx, StringBuilder out)  {
+            Object value = tmpl.getValue(ctx, _slot, _name, _line);
             if (value == null) {
                 executeSegs(tmpl, ctx, out); // TODO: configurable behavior on missing values
             }
@@ -9,8 +9,8 @@ import android.util.Log;
 import com.ichi2.anki.AnkiDroidApp;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -18,6 +18,13 @@ import java.util.Map;
  * output. The context can be any tree of objects. Variables are resolved against the context.
  * For anki, we only support the case where context is either a Map, or just an object that
  * implements Mustache.VariableFetcher.
+ *
+ * <p> Changed for anki: every distinct variable or section name of the template is bound to an
+ * integer slot when the template is compiled. While executing, the value of a slot is fetched
+ * from the root context at most once, so a field which is both tested by a section and
+ * substituted inside of it ({{#Extra}}{{Extra}}{{/Extra}}) costs one lookup and one run of its
+ * field modifier. Output is appended to a per-thread StringBuilder which is reused between
+ * executions and keeps the capacity of previous renders.
  */
 public class Template
 {
@@ -27,9 +34,10 @@ public class Template
      */
     public void execute (Object context, Writer out) throws MustacheException
     {
-        Context ctx = new Context(context, null, 0, Mode.OTHER);
-        for (Segment seg : _segs) {
-            seg.execute(this, ctx, out);
+        try {
+            out.write(execute(context));
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
         }
     }
 
@@ -39,14 +47,71 @@ public class Template
      */
     public String execute (Object context) throws MustacheException
     {
-        StringWriter out = new StringWriter();
-        execute(context, out);
-        return out.toString();
+        // take the buffer while in use, so a nested execution on the same thread gets its own
+        StringBuilder out = _buffer.get();
+        _buffer.set(null);
+        if (out == null) {
+            out = new StringBuilder(_sizeHint);
+        } else {
+            out.setLength(0);
+            out.ensureCapacity(_sizeHint);
+        }
+        Context ctx = new Context(context, null, 0, Mode.OTHER, _names.length);
+        for (Segment seg : _segs) {
+            seg.execute(this, ctx, out);
+        }
+        String result = out.toString();
+        _sizeHint = result.length() + 16;
+        if (out.capacity() <= MAX_BUFFER_CAPACITY) {
+            _buffer.set(out);
+        }
+        return result;
     }
 
     protected Template (Segment[] segs)
     {
         _segs = segs;
+        HashMap<String, Integer> slots = new HashMap<String, Integer>();
+        bindSlots(segs, slots);
+        _names = new String[slots.size()];
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            _names[entry.getValue()] = entry.getKey();
+        }
+    }
+
+    /** Assigns each named segment the slot of its name, adding new names as they come. */
+    protected static void bindSlots (Segment[] segs, Map<String, Integer> slots)
+    {
+        for (Segment seg : segs) {
+            if (seg instanceof Mustache.NamedSegment) {
+                Mustache.NamedSegment named = (Mustache.NamedSegment)seg;
+                Integer slot = slots.get(named._name);
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(named._name, slot);
+                }
+                named._slot = slot;
+            }
+            if (seg instanceof Mustache.CompoundSegment) {
+                bindSlots(((Mustache.CompoundSegment)seg)._segs, slots);
+            }
+        }
+    }
+
+    /**
+     * Called by executing named segments to obtain their value. Values of the root context are
+     * fetched once per execution and then served from the slot.
+     */
+    protected Object getValue (Context ctx, int slot, String name, int line)
+    {
+        if (ctx.parent != null) {
+            return getValue(ctx, name, line);
+        }
+        if (!ctx.resolved[slot]) {
+            ctx.values[slot] = getValue(ctx, name, line);
+            ctx.resolved[slot] = true;
+        }
+        return ctx.values[slot];
     }
 
     /**
@@ -103,6 +168,14 @@ public class Template
     }
 
     protected final Segment[] _segs;
+    /** The name bound to each slot */
+    protected final String[] _names;
+    /** Length of the last output, used to size the buffer of the next execution */
+    protected volatile int _sizeHint = 256;
+
+    /** Buffers above this capacity are not kept, so one huge card does not pin its memory */
+    protected static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+    protected static final ThreadLocal<StringBuilder> _buffer = new ThreadLocal<StringBuilder>();
 
     protected static Mustache.VariableFetcher createFetcher (Class<?> cclass, String name)
     {
@@ -122,12 +195,21 @@ public class Template
         public final Context parent;
         public final int index;
         public final Mode mode;
+        /** Slot values fetched so far; only used by the root context */
+        public final Object[] values;
+        public final boolean[] resolved;
 
         public Context (Object data, Context parent, int index, Mode mode) {
+            this(data, parent, index, mode, 0);
+        }
+
+        public Context (Object data, Context parent, int index, Mode mode, int slots) {
             this.data = data;
             this.parent = parent;
             this.index = index;
             this.mode = mode;
+            this.values = new Object[slots];
+            this.resolved = new boolean[slots];
         }
 
         public Context nest (Object data, int index, Mode mode) {
@@ -138,14 +220,10 @@ public class Template
     /** A template is broken into segments. */
     protected static abstract class Segment
     {
-        abstract void execute (Template tmpl, Context ctx, Writer out);
+        abstract void execute (Template tmpl, Context ctx, StringBuilder out);
 
-        protected static void write (Writer out, String data) {
-            try {
-                out.write(data);
-            } catch (IOException ioe) {
-                throw new MustacheException(ioe);
-            }
+        protected static void write (StringBuilder out, String data) {
+            out.append(data);
         }
     }
 
@@ -134,6 +134,17 @@ public class BubbleChart extends XYChart {
     canvas.drawCircle(x, y, radius, paint);
   }
 
+  /**
+   * Returns if the chart may draw a series reduced to the lowest and the
+   * highest value of each pixel column. The bubble sizes are looked up by
+   * point index, so it may not.
+   * 
+   * @return if the values may be downsampled
+   */
+  protected boolean isDownsampleValues() {
+    return false;
+  }
+
   /**
    * Returns the chart type identifier.
    * 
@@ -165,6 +165,17 @@ public class CombinedXYChart extends XYChart {
     mCharts[seriesIndex].drawLegendShape(canvas, renderer, x, y, 0, paint);
   }
 
+  /**
+   * Returns if the chart may draw a series reduced to the lowest and the
+   * highest value of each pixel column. The embedded chart of a series may
+   * need all its points, so it may not.
+   * 
+   * @return if the values may be downsampled
+   */
+  protected boolean isDownsampleValues() {
+    return false;
+  }
+
   /**
    * Returns the chart type identifier.
    * 
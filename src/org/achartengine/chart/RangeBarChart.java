@@ -129,6 +129,17 @@ public class RangeBarChart extends BarChart {
     return 0.5f;
   }
 
+  /**
+   * Returns if the chart may draw a series reduced to the lowest and the
+   * highest value of each pixel column. The bars are drawn from pairs of
+   * consecutive points, so it may not.
+   * 
+   * @return if the values may be downsampled
+   */
+  protected boolean isDownsampleValues() {
+    return false;
+  }
+
   /**
    * Returns the chart type identifier.
    * 
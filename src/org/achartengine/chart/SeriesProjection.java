@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2009 - 2012 SC 4ViewSoft SRL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.achartengine.chart;
+
+import org.achartengine.model.XYSeries;
+
+/**
+ * The values of a series mapped to screen distances for a given scale. The
+ * distances are measured from the first value of the series, so that moving
+ * the visible range only adds an offset: the projection is reused from frame
+ * to frame while panning and is only rebuilt when the scale or the series
+ * change.
+ * <p>
+ * When downsampled, only the lowest and the highest value of each pixel column
+ * are kept, in their original order. The columns are counted from the first
+ * value too, so the same values are kept wherever the series is panned to.
+ */
+class SeriesProjection {
+  /** The relative difference below which two scales are considered the same. */
+  private static final double SCALE_TOLERANCE = 1e-9;
+  /** The projected series. */
+  private final XYSeries mSeries;
+  /** The modification count of the series at the time of the projection. */
+  private final int mModCount;
+  /** The x scale of the projection. */
+  private final double mXPixelsPerUnit;
+  /** The y scale of the projection. */
+  private final double mYPixelsPerUnit;
+  /** If null values are drawn as zero, instead of splitting the series. */
+  private final boolean mRenderNullValues;
+  /** If the values were reduced to two per pixel column. */
+  private final boolean mDownsampled;
+  /** The x value all screen distances are measured from. */
+  private final double mOriginX;
+  /** The x values kept. */
+  private final double[] mX;
+  /** The y values kept. */
+  private final double[] mY;
+  /** The horizontal screen distances from the origin. */
+  private final float[] mScreenX;
+  /** The vertical screen distances from zero, NaN for values not drawn. */
+  private final float[] mScreenY;
+  /** The number of values kept. */
+  private int mCount;
+
+  /**
+   * Projects a series.
+   *
+   * @param chart the chart to draw the series on
+   * @param series the series, not empty
+   * @param xPixelsPerUnit the x scale
+   * @param yPixelsPerUnit the y scale
+   * @param downsample if only the lowest and highest value of each pixel
+   *          column are needed
+   */
+  SeriesProjection(XYChart chart, XYSeries series, double xPixelsPerUnit, double yPixelsPerUnit,
+      boolean downsample) {
+    mSeries = series;
+    mModCount = series.getModCount();
+    mXPixelsPerUnit = xPixelsPerUnit;
+    mYPixelsPerUnit = yPixelsPerUnit;
+    mRenderNullValues = chart.isRenderNullValues();
+    mDownsampled = downsample;
+    int length = series.getItemCount();
+    mOriginX = series.getX(0);
+    mX = new double[length];
+    mY = new double[length];
+    mScreenX = new float[length];
+    mScreenY = new float[length];
+
+    int column = Integer.MIN_VALUE;
+    int lowIndex = -1;
+    int highIndex = -1;
+    double low = 0;
+    double high = 0;
+    for (int k = 0; k < length; k++) {
+      double y = series.getY(k);
+      boolean isNull = chart.isNullValue(y);
+      if (!downsample || isNull && !mRenderNullValues) {
+        addBucket(chart, lowIndex, highIndex);
+        lowIndex = -1;
+        column = Integer.MIN_VALUE;
+        add(series.getX(k), y, isNull);
+        continue;
+      }
+      double value = isNull ? 0 : y;
+      int c = (int) Math.floor(xPixelsPerUnit * (series.getX(k) - mOriginX));
+      if (c != column) {
+        addBucket(chart, lowIndex, highIndex);
+        column = c;
+        lowIndex = k;
+        highIndex = k;
+        low = value;
+        high = value;
+      } else if (value < low) {
+        lowIndex = k;
+        low = value;
+      } else if (value > high) {
+        highIndex = k;
+        high = value;
+      }
+    }
+    addBucket(chart, lowIndex, highIndex);
+  }
+
+  /**
+   * Adds the values kept for a pixel column, in series order.
+   *
+   * @param chart the chart to draw the series on
+   * @param lowIndex the index of the lowest value, -1 for an empty column
+   * @param highIndex the index of the highest value
+   */
+  private void addBucket(XYChart chart, int lowIndex, int highIndex) {
+    if (lowIndex < 0) {
+      return;
+    }
+    int first = Math.min(lowIndex, highIndex);
+    int last = Math.max(lowIndex, highIndex);
+    addIndex(chart, first);
+    if (last != first) {
+      addIndex(chart, last);
+    }
+  }
+
+  /**
+   * Adds the value at the given index of the series.
+   *
+   * @param chart the chart to draw the series on
+   * @param index the index
+   */
+  private void addIndex(XYChart chart, int index) {
+    double y = mSeries.getY(index);
+    add(mSeries.getX(index), y, chart.isNullValue(y));
+  }
+
+  /**
+   * Adds a value.
+   *
+   * @param x the x value
+   * @param y the y value
+   * @param isNull if y is a null value
+   */
+  private void add(double x, double y, boolean isNull) {
+    mX[mCount] = x;
+    mY[mCount] = y;
+    mScreenX[mCount] = (float) (mXPixelsPerUnit * (x - mOriginX));
+    if (!isNull) {
+      mScreenY[mCount] = (float) (mYPixelsPerUnit * y);
+    } else if (mRenderNullValues) {
+      mScreenY[mCount] = 0;
+    } else {
+      mScreenY[mCount] = Float.NaN;
+    }
+    mCount++;
+  }
+
+  /**
+   * Returns if this projection can be used to draw the series with the given
+   * parameters.
+   *
+   * @param chart the chart to draw the series on
+   * @param series the series
+   * @param xPixelsPerUnit the x scale
+   * @param yPixelsPerUnit the y scale
+   * @param downsample if only the lowest and highest value of each pixel
+   *          column are needed
+   * @return if the projection is still valid
+   */
+  boolean isValid(XYChart chart, XYSeries series, double xPixelsPerUnit, double yPixelsPerUnit,
+      boolean downsample) {
+    // panning moves both ends of the range, which can change the scale in
+    // its last bits
+    return series == mSeries && series.getModCount() == mModCount
+        && chart.isRenderNullValues() == mRenderNullValues && downsample == mDownsampled
+        && isSameScale(xPixelsPerUnit, mXPixelsPerUnit)
+        && isSameScale(yPixelsPerUnit, mYPixelsPerUnit);
+  }
+
+  private static boolean isSameScale(double a, double b) {
+    return Math.abs(a - b) <= Math.abs(b) * SCALE_TOLERANCE;
+  }
+
+  /**
+   * Returns the x value all screen distances are measured from.
+   *
+   * @return the origin
+   */
+  double getOriginX() {
+    return mOriginX;
+  }
+
+  /**
+   * Returns the number of values kept.
+   *
+   * @return the value count
+   */
+  int getCount() {
+    return mCount;
+  }
+
+  double getX(int index) {
+    return mX[index];
+  }
+
+  double getY(int index) {
+    return mY[index];
+  }
+
+  /**
+   * Returns the horizontal screen distance of a value from the origin.
+   *
+   * @param index the index
+   * @return the distance in pixels
+   */
+  float getScreenX(int index) {
+    return mScreenX[index];
+  }
+
+  /**
+   * Returns the vertical screen distance of a value from zero.
+   *
+   * @param index the index
+   * @return the distance in pixels
+   */
+  float getScreenY(int index) {
+    return mScreenY[index];
+  }
+
+  /**
+   * Returns if the value at the given index is a null value splitting the
+   * series.
+   *
+   * @param index the index
+   * @return if the value is not drawn
+   */
+  boolean isGap(int index) {
+    return Float.isNaN(mScreenY[index]);
+  }
+
+  /**
+   * Returns the index of the first value to draw for a range starting at the
+   * given x: the last one before start, if any.
+   *
+   * @param start start x value
+   * @return the index of the first value in the range
+   */
+  int getRangeStartIndex(double start) {
+    return Math.max(0, getFirstIndexAtOrAbove(start) - 1);
+  }
+
+  /**
+   * Returns the index of the last value to draw for a range ending at the
+   * given x: the first one at or after stop, if any.
+   *
+   * @param stop stop x value
+   * @return the index of the last value in the range
+   */
+  int getRangeEndIndex(double stop) {
+    return Math.min(mCount - 1, getFirstIndexAtOrAbove(stop));
+  }
+
+  private int getFirstIndexAtOrAbove(double x) {
+    int low = 0;
+    int high = mCount;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mX[mid] < x) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -21,8 +21,6 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.SortedMap;
 
 import org.achartengine.model.Point;
 import org.achartengine.model.SeriesSelection;
@@ -65,6 +63,8 @@ public abstract class XYChart extends AbstractChart {
   private Rect mScreenR;
   /** The calculated range. */
   private final Map<Integer, double[]> mCalcRange = new HashMap<Integer, double[]>();
+  /** The projections of the series drawn last, kept for the next frame. */
+  private final Map<Integer, SeriesProjection> mProjections = new HashMap<Integer, SeriesProjection>();
 
   /**
    * The clickable areas for all points. The array index is the series index,
@@ -244,32 +244,37 @@ public abstract class XYChart extends AbstractChart {
 
       clickableAreas.put(i, clickableArea);
 
-      SortedMap<Double, Double> range = series.getRange(minX[scale], maxX[scale], 1);
-      int startIndex = -1;
+      // the chart values text is looked up by index in the series, so it
+      // needs all the values
+      boolean downsample = isDownsampleValues() && !seriesRenderer.isDisplayChartValues();
+      SeriesProjection projection = mProjections.get(i);
+      if (projection == null
+          || !projection.isValid(this, series, xPixelsPerUnit[scale], yPixelsPerUnit[scale],
+              downsample)) {
+        projection = new SeriesProjection(this, series, xPixelsPerUnit[scale],
+            yPixelsPerUnit[scale], downsample);
+        mProjections.put(i, projection);
+      }
+      // only the offset of the projected values depends on the visible range
+      float xOffset = (float) (left + xPixelsPerUnit[scale]
+          * (projection.getOriginX() - minX[scale]));
+      float yOffset = (float) (bottom + yPixelsPerUnit[scale] * minY[scale]);
 
-      int intRange = range.lastKey().intValue() - range.firstKey().intValue();
+      // the values are sorted by x, so the visible ones are found by index
+      // instead of copying them out into a sub map
+      int startIndex = projection.getRangeStartIndex(minX[scale]);
+      int endIndex = projection.getRangeEndIndex(maxX[scale]);
 
-      for (Entry<Double, Double> value : range.entrySet()) {
+      int intRange = (int) projection.getX(endIndex) - (int) projection.getX(startIndex);
 
-        double xValue = value.getKey();
-        double yValue = value.getValue();
-        if (startIndex < 0) {
-          startIndex = series.getIndexForKey(xValue);
-        }
+      for (int k = startIndex; k <= endIndex; k++) {
 
-        // points.add((float) (left + xPixelsPerUnit[scale]
-        // * (value.getKey().floatValue() - minX[scale])));
-        // points.add((float) (bottom - yPixelsPerUnit[scale]
-        // * (value.getValue().floatValue() - minY[scale])));
-        values.add(value.getKey());
-        values.add(value.getValue());
-
-        if (!isNullValue(yValue)) {
-          points.add((float) (left + xPixelsPerUnit[scale] * (xValue - minX[scale])));
-          points.add((float) (bottom - yPixelsPerUnit[scale] * (yValue - minY[scale])));
-        } else if (isRenderNullValues()) {
-          points.add((float) (left + xPixelsPerUnit[scale] * (xValue - minX[scale])));
-          points.add((float) (bottom - yPixelsPerUnit[scale] * (-minY[scale])));
+        values.add(projection.getX(k));
+        values.add(projection.getY(k));
+
+        if (!projection.isGap(k)) {
+          points.add(xOffset + projection.getScreenX(k));
+          points.add(yOffset - projection.getScreenY(k));
         } else {
           if (points.size() > 0) {
             drawSeries(series, canvas, paint, points, seriesRenderer, yAxisValue, i, or, startIndex, intRange);
@@ -858,6 +863,17 @@ public abstract class XYChart extends AbstractChart {
     return false;
   }
 
+  /**
+   * Returns if the chart may draw a series reduced to the lowest and the
+   * highest value of each pixel column, when it has more values than that.
+   * Charts which look up data by point index in the series must not.
+   * 
+   * @return if the values may be downsampled
+   */
+  protected boolean isDownsampleValues() {
+    return true;
+  }
+
   /**
    * Returns if the chart should display the points as a certain shape.
    * 
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2009, 2010 SC 4ViewSoft SRL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.achartengine.model;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.achartengine.util.MathHelper;
+
+/**
+ * An XY series keeping its values in two primitive arrays sorted by x, instead
+ * of a map of boxed values. The arrays given to the constructor are used as
+ * they are, so a series can be built from precomputed data without copying it.
+ * They must not be changed other than through the series afterwards.
+ */
+public class ArrayXYSeries extends XYSeries {
+  /** The initial capacity of a series built without values. */
+  private static final int INITIAL_CAPACITY = 16;
+  /** The values for the X axis, ascending. */
+  private double[] mX;
+  /** The values for the Y axis. */
+  private double[] mY;
+  /** The number of values in use. */
+  private int mCount;
+  /** The minimum value for the X axis. */
+  private double mMinX;
+  /** The maximum value for the X axis. */
+  private double mMaxX;
+  /** The minimum value for the Y axis. */
+  private double mMinY;
+  /** The maximum value for the Y axis. */
+  private double mMaxY;
+
+  /**
+   * Builds a new empty array backed XY series.
+   *
+   * @param title the series title.
+   */
+  public ArrayXYSeries(String title) {
+    this(title, new double[INITIAL_CAPACITY], new double[INITIAL_CAPACITY], 0);
+  }
+
+  /**
+   * Builds a new array backed XY series holding the given values.
+   *
+   * @param title the series title.
+   * @param x the values for the X axis, in ascending order
+   * @param y the values for the Y axis
+   */
+  public ArrayXYSeries(String title, double[] x, double[] y) {
+    this(title, x, y, x.length);
+  }
+
+  /**
+   * Builds a new array backed XY series holding the first count values of the
+   * given arrays.
+   *
+   * @param title the series title.
+   * @param x the values for the X axis, in ascending order
+   * @param y the values for the Y axis
+   * @param count the number of values in use
+   */
+  public ArrayXYSeries(String title, double[] x, double[] y, int count) {
+    super(title);
+    if (count > x.length || count > y.length) {
+      throw new IllegalArgumentException("Series shorter than " + count + " values");
+    }
+    mX = x;
+    mY = y;
+    mCount = count;
+    initRange();
+  }
+
+  /**
+   * Initializes the range for both axes.
+   */
+  private void initRange() {
+    mMinX = MathHelper.NULL_VALUE;
+    mMaxX = -MathHelper.NULL_VALUE;
+    mMinY = MathHelper.NULL_VALUE;
+    mMaxY = -MathHelper.NULL_VALUE;
+    for (int k = 0; k < mCount; k++) {
+      updateRange(mX[k], mY[k]);
+    }
+  }
+
+  /**
+   * Updates the range on both axes.
+   *
+   * @param x the new x value
+   * @param y the new y value
+   */
+  private void updateRange(double x, double y) {
+    mMinX = Math.min(mMinX, x);
+    mMaxX = Math.max(mMaxX, x);
+    mMinY = Math.min(mMinY, y);
+    mMaxY = Math.max(mMaxY, y);
+  }
+
+  /**
+   * Adds a new value to the series, keeping the values sorted by x. A value
+   * with an x already in the series replaces the existing one.
+   *
+   * @param x the value for the X axis
+   * @param y the value for the Y axis
+   */
+  @Override
+  public synchronized void add(double x, double y) {
+    int index;
+    if (mCount == 0 || x > mX[mCount - 1]) {
+      index = mCount;
+    } else {
+      index = getFirstIndexAtOrAbove(x);
+      if (mX[index] == x) {
+        double oldY = mY[index];
+        mY[index] = y;
+        if (oldY == mMinY || oldY == mMaxY) {
+          initRange();
+        } else {
+          updateRange(x, y);
+        }
+        modified();
+        return;
+      }
+    }
+    if (mCount == mX.length || mCount == mY.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, mCount * 2);
+      double[] newX = new double[capacity];
+      double[] newY = new double[capacity];
+      System.arraycopy(mX, 0, newX, 0, mCount);
+      System.arraycopy(mY, 0, newY, 0, mCount);
+      mX = newX;
+      mY = newY;
+    }
+    System.arraycopy(mX, index, mX, index + 1, mCount - index);
+    System.arraycopy(mY, index, mY, index + 1, mCount - index);
+    mX[index] = x;
+    mY[index] = y;
+    mCount++;
+    updateRange(x, y);
+    modified();
+  }
+
+  /**
+   * Removes an existing value from the series.
+   *
+   * @param index the index in the series of the value to remove
+   */
+  @Override
+  public synchronized void remove(int index) {
+    if (index < 0 || index >= mCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+    }
+    double removedX = mX[index];
+    double removedY = mY[index];
+    System.arraycopy(mX, index + 1, mX, index, mCount - index - 1);
+    System.arraycopy(mY, index + 1, mY, index, mCount - index - 1);
+    mCount--;
+    if (removedX == mMinX || removedX == mMaxX || removedY == mMinY || removedY == mMaxY) {
+      initRange();
+    }
+    modified();
+  }
+
+  /**
+   * Removes all the existing values from the series.
+   */
+  @Override
+  public synchronized void clear() {
+    mCount = 0;
+    initRange();
+    modified();
+  }
+
+  @Override
+  public synchronized double getX(int index) {
+    if (index >= mCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+    }
+    return mX[index];
+  }
+
+  @Override
+  public synchronized double getY(int index) {
+    if (index >= mCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+    }
+    return mY[index];
+  }
+
+  @Override
+  public synchronized SortedMap<Double, Double> getRange(double start, double stop,
+      int beforeAfterPoints) {
+    SortedMap<Double, Double> range = new TreeMap<Double, Double>();
+    if (mCount == 0) {
+      return range;
+    }
+    int end = getRangeEndIndex(stop);
+    for (int k = getRangeStartIndex(start); k <= end; k++) {
+      range.put(mX[k], mY[k]);
+    }
+    return range;
+  }
+
+  @Override
+  public synchronized int getIndexForKey(double key) {
+    if (mCount == 0) {
+      return -1;
+    }
+    int index = getFirstIndexAtOrAbove(key);
+    return index < mCount && mX[index] == key ? index : -1;
+  }
+
+  @Override
+  public synchronized int getItemCount() {
+    return mCount;
+  }
+
+  @Override
+  public double getMinX() {
+    return mMinX;
+  }
+
+  @Override
+  public double getMinY() {
+    return mMinY;
+  }
+
+  @Override
+  public double getMaxX() {
+    return mMaxX;
+  }
+
+  @Override
+  public double getMaxY() {
+    return mMaxY;
+  }
+}
@@ -42,6 +42,8 @@ public class XYSeries implements Serializable {
   private double mMaxY = -MathHelper.NULL_VALUE;
   /** The scale number for this series. */
   private final int mScaleNumber;
+  /** The number of changes made to the values. */
+  private int mModCount;
 
   /**
    * Builds a new XY series.
@@ -124,6 +126,7 @@ public class XYSeries implements Serializable {
   public synchronized void add(double x, double y) {
     mXY.put(x, y);
     updateRange(x, y);
+    modified();
   }
 
   /**
@@ -138,6 +141,7 @@ public class XYSeries implements Serializable {
     if (removedX == mMinX || removedX == mMaxX || removedY == mMinY || removedY == mMaxY) {
       initRange();
     }
+    modified();
   }
 
   /**
@@ -146,6 +150,25 @@ public class XYSeries implements Serializable {
   public synchronized void clear() {
     mXY.clear();
     initRange();
+    modified();
+  }
+
+  /**
+   * Records a change to the values, to be called by every method changing
+   * them.
+   */
+  protected void modified() {
+    mModCount++;
+  }
+
+  /**
+   * Returns the number of changes made to the values so far. Charts use it to
+   * tell whether data they have derived from the series is still valid.
+   * 
+   * @return the modification count
+   */
+  public int getModCount() {
+    return mModCount;
   }
 
   /**
@@ -206,6 +229,52 @@ public class XYSeries implements Serializable {
   public int getIndexForKey(double key) {
     return mXY.getIndexForKey(key);
   }
+
+  /**
+   * Returns the index of the first value with an x of at least the given one,
+   * or the item count if there is none. Relies on the values being added in
+   * ascending x order.
+   * 
+   * @param x the x value
+   * @return the index
+   */
+  protected synchronized int getFirstIndexAtOrAbove(double x) {
+    int low = 0;
+    int high = getItemCount();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getX(mid) < x) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the index of the first value to draw for a range starting at the
+   * given x: the last one before start, so that a line doesn't start after the
+   * beginning of the screen. The series must not be empty.
+   * 
+   * @param start start x value
+   * @return the index of the first value in the range
+   */
+  public synchronized int getRangeStartIndex(double start) {
+    return Math.max(0, getFirstIndexAtOrAbove(start) - 1);
+  }
+
+  /**
+   * Returns the index of the last value to draw for a range ending at the
+   * given x: the first one at or after stop, so that a line doesn't end before
+   * the end of the screen. The series must not be empty.
+   * 
+   * @param stop stop x value
+   * @return the index of the last value in the range
+   */
+  public synchronized int getRangeEndIndex(double stop) {
+    return Math.min(getItemCount() - 1, getFirstIndexAtOrAbove(stop));
+  }
   
   /**
    * Returns the series item count.
@@ -0,0 +1,182 @@
+#!/bin/sh
+#
+# Times BackupStore against the plain file copy which was used for backups before,
+# on the desktop JVM. Android classes are replaced by minimal stubs.
+#
+# Usage: ./backup-benchmark.sh collection.anki2 [runs]
+#
+# Prints, for the plain copy and the chunk store: the time of a full backup, of a
+# backup after a small change, of a restore, and the bytes written.
+
+if [ -z "$1" ] || [ ! -f "$1" ]; then
+    echo "Usage: $0 collection.anki2 [runs]"
+    exit 1
+fi
+COL=$(cd "$(dirname "$1")" && pwd)/$(basename "$1")
+RUNS=${2:-5}
+SRC=$(cd "$(dirname "$0")/../src" && pwd)
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+mkdir -p "$WORK/src/android/util" "$WORK/src/com/ichi2/anki" "$WORK/src/com/ichi2/libanki" "$WORK/classes"
+cp "$SRC/com/ichi2/anki/BackupStore.java" "$WORK/src/com/ichi2/anki/"
+
+cat > "$WORK/src/android/util/Log.java" <<'EOF'
+package android.util;
+public final class Log {
+    public static int i(String tag, String msg) { return 0; }
+    public static int w(String tag, String msg) { System.err.println(msg); return 0; }
+    public static int e(String tag, String msg) { System.err.println(msg); return 0; }
+}
+EOF
+
+cat > "$WORK/src/com/ichi2/anki/AnkiDroidApp.java" <<'EOF'
+package com.ichi2.anki;
+public class AnkiDroidApp {
+    public static final String TAG = "AnkiDroid";
+}
+EOF
+
+# copied from libanki/Utils, which can't be compiled without android
+cat > "$WORK/src/com/ichi2/libanki/Utils.java" <<'EOF'
+package com.ichi2.libanki;
+public class Utils {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    public static String hexDigest(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+}
+EOF
+
+cat > "$WORK/src/BackupBenchmark.java" <<'EOF'
+import com.ichi2.anki.BackupStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class BackupBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        File col = new File(args[0]);
+        int runs = Integer.parseInt(args[1]);
+        File dir = new File(args[2]);
+        long[] copy = new long[runs];
+        long[] copyRestore = new long[runs];
+        long[] full = new long[runs];
+        long[] incremental = new long[runs];
+        long[] restore = new long[runs];
+        long fullBytes = 0;
+        long incrementalBytes = 0;
+        for (int r = 0; r < runs; r++) {
+            File run = new File(dir, "run" + r);
+            run.mkdirs();
+            File work = new File(run, "collection.anki2");
+            copyFile(col, work);
+
+            long start = System.nanoTime();
+            copyFile(work, new File(run, "copy.anki2"));
+            copy[r] = System.nanoTime() - start;
+            start = System.nanoTime();
+            copyFile(new File(run, "copy.anki2"), new File(run, "copy-restored.anki2"));
+            copyRestore[r] = System.nanoTime() - start;
+
+            BackupStore store = BackupStore.get(run, work.getName());
+            start = System.nanoTime();
+            fullBytes = store.backup(work, new File(run, "1" + BackupStore.SNAPSHOT_SUFFIX));
+            full[r] = System.nanoTime() - start;
+
+            // a review touches a few pages spread over the file
+            RandomAccessFile raf = new RandomAccessFile(work, "rw");
+            for (int i = 1; i <= 8; i++) {
+                raf.seek(raf.length() * i / 9);
+                raf.writeLong(System.nanoTime());
+            }
+            raf.close();
+            start = System.nanoTime();
+            incrementalBytes = store.backup(work, new File(run, "2" + BackupStore.SNAPSHOT_SUFFIX));
+            incremental[r] = System.nanoTime() - start;
+
+            File restored = new File(run, "restored.anki2");
+            start = System.nanoTime();
+            store.restore(new File(run, "2" + BackupStore.SNAPSHOT_SUFFIX), restored);
+            restore[r] = System.nanoTime() - start;
+            if (!sameContent(work, restored)) {
+                throw new IOException("restored file differs from the collection");
+            }
+        }
+        System.out.println("collection: " + col.length() + " bytes, median of " + runs + " runs");
+        System.out.println("plain copy:  backup " + median(copy) + " ms, restore " + median(copyRestore)
+                + " ms, " + col.length() + " bytes per backup");
+        System.out.println("chunk store: backup " + median(full) + " ms (" + fullBytes + " bytes), after a change "
+                + median(incremental) + " ms (" + incrementalBytes + " bytes), restore " + median(restore) + " ms");
+    }
+
+
+    private static long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000000;
+    }
+
+
+    /** The copy done by Utils.copyFile, plus the sync a backup needs to be safe */
+    private static void copyFile(File source, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            FileChannel channel = in.getChannel();
+            out.getChannel().transferFrom(channel, 0, channel.size());
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        FileInputStream inA = new FileInputStream(a);
+        FileInputStream inB = new FileInputStream(b);
+        try {
+            byte[] bufA = new byte[65536];
+            byte[] bufB = new byte[65536];
+            int n;
+            while ((n = inA.read(bufA)) > 0) {
+                int m = 0;
+                while (m < n) {
+                    int k = inB.read(bufB, m, n - m);
+                    if (k < 0) {
+                        return false;
+                    }
+                    m += k;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (bufA[i] != bufB[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            inA.close();
+            inB.close();
+        }
+    }
+}
+EOF
+
+javac -nowarn -encoding utf8 -d "$WORK/classes" $(find "$WORK/src" -name "*.java") || exit 1
+java -cp "$WORK/classes" BackupBenchmark "$COL" "$RUNS" "$WORK"
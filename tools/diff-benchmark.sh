@@ -0,0 +1,160 @@
+#!/bin/sh
+#
+# Times the typed answer diff of DiffEngine against the DiffEngine it replaced (the
+# version before the Myers bisect), on the desktop JVM.
+#
+# Usage: ./diff-benchmark.sh [pairs] [seed]
+#
+# Generates random answer pairs of 5-45 words, where about a tenth of the words of
+# the typed answer are misspelled, dropped or replaced. Both engines diff every pair
+# with the timeout the reviewer uses, and every diff is checked to reproduce both
+# answers. Prints the average time of diff_main + diff_prettyHtml per pair.
+
+PAIRS=${1:-2000}
+SEED=${2:-1}
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+# last version of DiffEngine with the old diff_map
+OLD_REVISION=2c80ae7^
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+mkdir -p "$WORK/src/com/ichi2/utils" "$WORK/src/old" "$WORK/classes"
+cp "$ROOT/src/com/ichi2/utils/DiffEngine.java" "$WORK/src/com/ichi2/utils/"
+git -C "$ROOT" show "$OLD_REVISION:src/com/ichi2/utils/DiffEngine.java" \
+    | sed 's/^package com\.ichi2\.utils;/package old;/' > "$WORK/src/old/DiffEngine.java" || exit 1
+
+cat > "$WORK/src/DiffBenchmark.java" <<'EOF'
+import com.ichi2.utils.DiffEngine;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+public class DiffBenchmark {
+
+    private static final String[] WORDS = { "the", "house", "garden", "river", "mountain", "to", "run", "quickly",
+            "beautiful", "yesterday", "and", "because", "although", "photosynthesis", "of", "a", "library", "window",
+            "teacher", "green", "small", "important", "never", "question", "answer", "between", "über", "straße",
+            "mitochondria", "revolution" };
+
+    /** The timeout the reviewer uses, in seconds */
+    private static final float TIMEOUT = 0.2f;
+
+
+    public static void main(String[] args) {
+        int pairs = Integer.parseInt(args[0]);
+        Random random = new Random(Long.parseLong(args[1]));
+        String[][] answers = new String[pairs][];
+        int chars = 0;
+        for (int i = 0; i < pairs; i++) {
+            answers[i] = answerPair(random);
+            chars += answers[i][0].length() + answers[i][1].length();
+        }
+
+        // warm up the jit for both engines
+        run(answers, false);
+        runOld(answers, false);
+
+        long current = run(answers, true);
+        long old = runOld(answers, true);
+        System.out.println(pairs + " pairs, " + (chars / pairs / 2) + " chars per answer on average");
+        System.out.println("old diff_map:  " + (old / pairs / 1000) + " us per pair");
+        System.out.println("myers bisect:  " + (current / pairs / 1000) + " us per pair");
+    }
+
+
+    private static long run(String[][] answers, boolean check) {
+        long total = 0;
+        for (String[] pair : answers) {
+            DiffEngine engine = new DiffEngine();
+            engine.Diff_Timeout = TIMEOUT;
+            long start = System.nanoTime();
+            LinkedList<DiffEngine.DiffAction> diffs = engine.diff_main(pair[0], pair[1]);
+            engine.diff_prettyHtml(diffs);
+            total += System.nanoTime() - start;
+            if (check) {
+                StringBuilder text1 = new StringBuilder();
+                StringBuilder text2 = new StringBuilder();
+                for (DiffEngine.DiffAction d : diffs) {
+                    if (d.operation != DiffEngine.Operation.INSERT) {
+                        text1.append(d.text);
+                    }
+                    if (d.operation != DiffEngine.Operation.DELETE) {
+                        text2.append(d.text);
+                    }
+                }
+                verify(pair, text1, text2);
+            }
+        }
+        return total;
+    }
+
+
+    private static long runOld(String[][] answers, boolean check) {
+        long total = 0;
+        for (String[] pair : answers) {
+            old.DiffEngine engine = new old.DiffEngine();
+            engine.Diff_Timeout = TIMEOUT;
+            long start = System.nanoTime();
+            LinkedList<old.DiffEngine.DiffAction> diffs = engine.diff_main(pair[0], pair[1]);
+            engine.diff_prettyHtml(diffs);
+            total += System.nanoTime() - start;
+            if (check) {
+                StringBuilder text1 = new StringBuilder();
+                StringBuilder text2 = new StringBuilder();
+                for (old.DiffEngine.DiffAction d : diffs) {
+                    if (d.operation != old.DiffEngine.Operation.INSERT) {
+                        text1.append(d.text);
+                    }
+                    if (d.operation != old.DiffEngine.Operation.DELETE) {
+                        text2.append(d.text);
+                    }
+                }
+                verify(pair, text1, text2);
+            }
+        }
+        return total;
+    }
+
+
+    private static void verify(String[] pair, StringBuilder text1, StringBuilder text2) {
+        if (!pair[0].equals(text1.toString()) || !pair[1].equals(text2.toString())) {
+            throw new IllegalStateException("diff does not reproduce \"" + pair[0] + "\" / \"" + pair[1] + "\"");
+        }
+    }
+
+
+    /** Return the typed answer and the correct answer */
+    private static String[] answerPair(Random random) {
+        int words = 5 + random.nextInt(41);
+        StringBuilder typed = new StringBuilder();
+        StringBuilder correct = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            correct.append(i == 0 ? "" : " ").append(word);
+            if (random.nextInt(10) != 0) {
+                typed.append(i == 0 ? "" : " ").append(word);
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    // misspelled: one letter changed
+                    char[] letters = word.toCharArray();
+                    letters[random.nextInt(letters.length)] = (char) ('a' + random.nextInt(26));
+                    typed.append(i == 0 ? "" : " ").append(letters);
+                    break;
+                case 1:
+                    // dropped
+                    break;
+                default:
+                    // replaced by another word
+                    typed.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+                    break;
+            }
+        }
+        return new String[] { typed.toString(), correct.toString() };
+    }
+}
+EOF
+
+javac -nowarn -encoding utf8 -d "$WORK/classes" $(find "$WORK/src" -name "*.java") || exit 1
+java -cp "$WORK/classes" DiffBenchmark "$PAIRS" "$SEED"